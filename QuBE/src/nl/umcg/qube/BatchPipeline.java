@@ -0,0 +1,350 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.umcg.qube.io.DicomLoader;
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
+import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.model.Polygon;
+import nl.umcg.qube.model.SequenceIdentifier;
+import nl.umcg.qube.process.IBlushCalculator;
+import nl.umcg.qube.process.IMoveCalculator;
+
+/**
+ * BatchPipeline processes runs in three stages: decoding with
+ * {@link DicomLoader}, panning correction with an {@link IMoveCalculator} and
+ * the blush calculation with an {@link IBlushCalculator}. Every stage has its
+ * own threads and a bounded queue in front of it, so decoding (which waits for
+ * the disk) overlaps with the calculations, and a slow stage makes the stages
+ * before it wait instead of piling up sequences.
+ * 
+ * Jobs are only let in while the decoded sequences in the pipeline fit in a
+ * memory budget. Before decoding, a job reserves an estimate of its size; the
+ * reservation is corrected once the sequence is decoded and released when the
+ * job is done.
+ * 
+ * @author mathijs
+ */
+public class BatchPipeline {
+    /** The size reserved for a sequence before it is decoded: 125 frames of 512x512 */
+    public static final long DEFAULT_ESTIMATE = 125L * 512 * 512;
+
+    /**
+     * A run to process: a DICOM file, a polygon and the frames to use.
+     */
+    public static class Job {
+        public final int number;
+        public final File file;
+        public final Polygon polygon;
+        /** The first and last frame to use, counting from 1 */
+        public final int first, last;
+
+        SequenceIdentifier id, windowID;
+        CAGSequence sequence;
+        MoveCorrection moveCorrection;
+        long reserved;
+
+        /** The result, when the job succeeded */
+        public IBlushCalculator.CalculationResult result;
+        /** The first and last frame that were used */
+        public int usedFirst, usedLast;
+        /** The error, when the job failed */
+        public Throwable error;
+
+        public Job(int number, File file, Polygon polygon, int first, int last) {
+            this.number = number;
+            this.file = file;
+            this.polygon = polygon;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Receives jobs when they are done, on the thread of the stage that
+     * finished them.
+     */
+    public interface Listener {
+        void finished(Job job);
+    }
+
+    private static final Job END = new Job(-1, null, null, 0, 0);
+
+    /**
+     * A stage with its own queue and worker threads.
+     */
+    protected abstract class Stage {
+        final String name;
+        final BlockingQueue<Job> queue;
+        final Thread[] workers;
+        final AtomicInteger alive;
+        Stage next;
+
+        long processed = 0, busyNanos = 0;
+        int maxDepth = 0;
+
+        Stage(String name, int threads, int capacity) {
+            this.name = name;
+            queue = new ArrayBlockingQueue<Job>(capacity);
+            workers = new Thread[threads];
+            alive = new AtomicInteger(threads);
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(name + " " + (i + 1)) {
+                    public void run() {
+                        work();
+                    }
+                };
+                workers[i].setDaemon(true);
+            }
+        }
+
+        abstract void process(Job job) throws Exception;
+
+        void start() {
+            for (Thread t : workers)
+                t.start();
+        }
+
+        void put(Job job) throws InterruptedException {
+            queue.put(job);
+            synchronized (this) {
+                maxDepth = Math.max(maxDepth, queue.size());
+            }
+        }
+
+        void work() {
+            try {
+                while (true) {
+                    Job job = queue.take();
+                    if (job == END)
+                        break;
+                    long start = System.nanoTime();
+                    try {
+                        process(job);
+                    } catch (Throwable t) {
+                        job.error = t;
+                    }
+                    synchronized (this) {
+                        processed++;
+                        busyNanos += System.nanoTime() - start;
+                    }
+                    if (job.error == null && next != null)
+                        next.put(job);
+                    else
+                        finish(job);
+                }
+                // The last worker to stop tells the next stage to stop.
+                if (alive.decrementAndGet() == 0 && next != null)
+                    for (int i = 0; i < next.workers.length; i++)
+                        next.put(END);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized String statistics(long elapsedNanos) {
+            return String.format("%s: %d done, queue %d (max %d), %.1f jobs/s, %.0f%% busy",
+                    name, processed, queue.size(), maxDepth, elapsedNanos > 0 ? processed
+                            * 1e9 / elapsedNanos : 0.0, elapsedNanos > 0 ? 100.0 * busyNanos
+                            / elapsedNanos / workers.length : 0.0);
+        }
+    }
+
+    protected final IMoveCalculator moveCalculator;
+    protected final IBlushCalculator blushCalculator;
+    protected final Listener listener;
+
+    protected final Stage decode, motion, blush;
+
+    protected final long budget;
+    protected long used = 0;
+
+    private CountDownLatch pending;
+    private long startNanos;
+
+    /**
+     * @param moveCalculator
+     *            The calculator for the panning correction
+     * @param blushCalculator
+     *            The calculator for the blush value
+     * @param listener
+     *            The listener to give finished jobs to
+     * @param decoders
+     *            The number of threads that decode
+     * @param movers
+     *            The number of threads that calculate the panning correction
+     * @param blushers
+     *            The number of threads that calculate the blush value
+     * @param capacity
+     *            The number of jobs that can wait in front of each stage
+     * @param budget
+     *            The maximum number of bytes of decoded pixels in the pipeline
+     */
+    public BatchPipeline(IMoveCalculator moveCalculator, IBlushCalculator blushCalculator,
+            Listener listener, int decoders, int movers, int blushers, int capacity, long budget) {
+        this.moveCalculator = moveCalculator;
+        this.blushCalculator = blushCalculator;
+        this.listener = listener;
+        this.budget = budget;
+
+        decode = new Stage("decode", decoders, capacity) {
+            void process(Job job) throws Exception {
+                job.id = new SequenceIdentifier("", "", job.file.getAbsolutePath());
+                job.sequence = DicomLoader.loadFromFile(job.file, job.id);
+                CAGSequence seq = job.sequence;
+                adjust(job, (long) seq.frameCount() * seq.getWidth() * seq.getHeight());
+            }
+        };
+        motion = new Stage("motion", movers, capacity) {
+            void process(Job job) {
+                job.moveCorrection = BatchPipeline.this.moveCalculator
+                        .getMoveCorrection(job.sequence);
+            }
+        };
+        blush = new Stage("blush", blushers, capacity) {
+            void process(Job job) {
+                calculate(job);
+            }
+        };
+        decode.next = motion;
+        motion.next = blush;
+    }
+
+    /**
+     * Cut the sequence of a job to its frames and calculate the blush value.
+     * The panning correction is calculated over the whole run, so that the
+     * polygon is in the same coordinates as when it was drawn.
+     */
+    protected void calculate(Job job) {
+        CAGSequence sequence = job.sequence;
+        MoveCorrection mc = job.moveCorrection;
+        int first = Math.max(1, job.first), last = Math.min(sequence.frameCount(), job.last);
+        if (first > last)
+            throw new IllegalArgumentException("no frames between " + job.first + " and "
+                    + job.last);
+        if (first > 1 || last < sequence.frameCount()) {
+            // The window gets its own identifier, so that its buffers do not
+            // mix with those of the whole run.
+            job.windowID = new SequenceIdentifier("", "", job.id.sequenceID + "#" + first + "-"
+                    + last);
+            CAGFrame[] frames = new CAGFrame[last - first + 1];
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = sequence.getFrame(first - 1 + i);
+            sequence = new CAGSequence(frames, job.windowID);
+            mc = new MoveCorrection(Arrays.copyOfRange(mc.dx, first - 1, last), Arrays
+                    .copyOfRange(mc.dy, first - 1, last));
+        }
+        job.usedFirst = first;
+        job.usedLast = last;
+        job.result = blushCalculator.calculate(sequence, job.polygon, mc);
+    }
+
+    /**
+     * Wait until the budget has room for bytes more, and reserve them. A job
+     * is always let in when the pipeline is empty, even when it is larger than
+     * the budget.
+     */
+    protected synchronized void reserve(Job job, long bytes) throws InterruptedException {
+        while (used > 0 && used + bytes > budget)
+            wait();
+        used += bytes;
+        job.reserved = bytes;
+    }
+
+    /**
+     * Change the reservation of a job to its real size.
+     */
+    protected synchronized void adjust(Job job, long bytes) {
+        used += bytes - job.reserved;
+        job.reserved = bytes;
+        notifyAll();
+    }
+
+    protected synchronized void release(Job job) {
+        used -= job.reserved;
+        job.reserved = 0;
+        notifyAll();
+    }
+
+    /**
+     * Give a finished job to the listener and release its memory.
+     */
+    protected void finish(Job job) {
+        job.sequence = null;
+        if (job.id != null)
+            FrameMemoryManager.getInstance().removeAll(job.id);
+        if (job.windowID != null)
+            FrameMemoryManager.getInstance().removeAll(job.windowID);
+        release(job);
+        try {
+            listener.finished(job);
+        } finally {
+            pending.countDown();
+        }
+    }
+
+    /**
+     * Process jobs, and wait until all of them are done.
+     * 
+     * @param jobs
+     *            The jobs
+     */
+    public void process(List<Job> jobs) throws InterruptedException {
+        pending = new CountDownLatch(jobs.size());
+        startNanos = System.nanoTime();
+        decode.start();
+        motion.start();
+        blush.start();
+
+        for (Job job : jobs) {
+            reserve(job, DEFAULT_ESTIMATE);
+            decode.put(job);
+        }
+        for (int i = 0; i < decode.workers.length; i++)
+            decode.put(END);
+        pending.await();
+    }
+
+    /**
+     * @return the number of bytes reserved by jobs in the pipeline
+     */
+    public synchronized long getUsedMemory() {
+        return used;
+    }
+
+    /**
+     * @return the queue depth and throughput of every stage
+     */
+    public String getStatistics() {
+        long elapsed = System.nanoTime() - startNanos;
+        return decode.statistics(elapsed) + "\n" + motion.statistics(elapsed) + "\n"
+                + blush.statistics(elapsed) + "\n"
+                + String.format("memory: %d of %d MB", getUsedMemory() >> 20, budget >> 20);
+    }
+}
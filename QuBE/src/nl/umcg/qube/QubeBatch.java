@@ -0,0 +1,250 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.umcg.qube.BatchPipeline.Job;
+import nl.umcg.qube.io.MoveCorrectionStore;
+import nl.umcg.qube.model.FrameMemoryManager;
+import nl.umcg.qube.model.Polygon;
+import nl.umcg.qube.process.BinaryMoveCalc;
+import nl.umcg.qube.process.BlushCalculatorImpl;
+import nl.umcg.qube.process.IBlushCalculator;
+import nl.umcg.qube.process.IMoveCalculator;
+import nl.umcg.qube.process.PhaseCorrelationMoveCalc;
+import nl.umcg.qube.process.ProjectionMoveCalc;
+
+/**
+ * Headless batch processing of many runs. QubeBatch reads a manifest with one
+ * run per line, calculates the QuBE value of each run in a
+ * {@link BatchPipeline} and writes a CSV line per run as soon as it is done.
+ * 
+ * Every line of the manifest holds tab separated fields: the DICOM file, the
+ * polygon in the format of {@link Polygon#storeString()} and optionally the
+ * first and last frame to use (counting from 1, inclusive). The panning
+ * correction is always calculated over the whole run. Empty lines and lines
+ * starting with # are skipped.
+ * 
+ * Usage: QubeBatch [-threads n] [-decoders n] [-movers n] [-blushers n]
+ * [-queue n] [-memory MB] [-movecalc binary|phase|projection]
+ * [-motiondir dir] [-out file.csv] manifest
+ * 
+ * @author mathijs
+ */
+public class QubeBatch implements BatchPipeline.Listener {
+    protected final PrintWriter out;
+
+    protected final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+
+    public QubeBatch(PrintWriter out) {
+        this.out = out;
+        out.println("line,file,first,last,qube,error,curve");
+        out.flush();
+    }
+
+    /**
+     * Read a manifest.
+     * 
+     * @throws IOException
+     *             When the manifest cannot be read or has an invalid line
+     */
+    public static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                manifest), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.trim().length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\t");
+                try {
+                    int first = fields.length > 2 ? Integer.parseInt(fields[2].trim()) : 1;
+                    int last = fields.length > 3 ? Integer.parseInt(fields[3].trim())
+                            : Integer.MAX_VALUE;
+                    jobs.add(new Job(number, new File(fields[0]), Polygon.fromString(fields[1]),
+                            first, last));
+                } catch (RuntimeException re) {
+                    throw new IOException(manifest + ":" + number + ": invalid line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    /**
+     * Write the result of a job.
+     */
+    @Override
+    public synchronized void finished(Job job) {
+        if (job.error == null) {
+            StringBuilder curve = new StringBuilder();
+            for (double d : job.result.curve) {
+                if (curve.length() > 0)
+                    curve.append(' ');
+                curve.append(d);
+            }
+            out.println(job.number + "," + quote(job.file.getPath()) + "," + job.usedFirst + ","
+                    + job.usedLast + "," + job.result.qubeValue + ",," + curve);
+            done.incrementAndGet();
+        } else {
+            out.println(job.number + "," + quote(job.file.getPath()) + "," + job.first + ","
+                    + (job.last == Integer.MAX_VALUE ? "" : String.valueOf(job.last)) + ",,"
+                    + quote(String.valueOf(job.error)) + ",");
+            failed.incrementAndGet();
+        }
+        out.flush();
+    }
+
+    private static String quote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    public int getDone() {
+        return done.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    protected static IMoveCalculator createMoveCalculator(String name) {
+        // Runs are processed in parallel, so every calculation uses a single
+        // thread.
+        if (name.equals("binary"))
+            return new BinaryMoveCalc(null);
+        if (name.equals("phase"))
+            return new PhaseCorrelationMoveCalc();
+        if (name.equals("projection"))
+            return new ProjectionMoveCalc();
+        throw new IllegalArgumentException("Unknown move calculator: " + name);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: QubeBatch [-threads n] [-decoders n] [-movers n] "
+                + "[-blushers n] [-queue n] [-memory MB] "
+                + "[-movecalc binary|phase|projection] [-motiondir dir] "
+                + "[-out file.csv] manifest");
+        System.exit(2);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int decoders = 0, movers = 0, blushers = 0, queue = 2;
+        long memory = Runtime.getRuntime().maxMemory() / 2;
+        String moveCalc = "binary", motionDir = null, output = null, manifest = null;
+        for (int i = 0; i < args.length; i++) {
+            boolean value = i + 1 < args.length;
+            if (args[i].equals("-threads") && value)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-decoders") && value)
+                decoders = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-movers") && value)
+                movers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-blushers") && value)
+                blushers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-queue") && value)
+                queue = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-memory") && value)
+                memory = Long.parseLong(args[++i]) << 20;
+            else if (args[i].equals("-movecalc") && value)
+                moveCalc = args[++i];
+            else if (args[i].equals("-motiondir") && value)
+                motionDir = args[++i];
+            else if (args[i].equals("-out") && value)
+                output = args[++i];
+            else if (manifest == null && !args[i].startsWith("-"))
+                manifest = args[i];
+            else
+                usage();
+        }
+        if (manifest == null || threads < 1 || queue < 1)
+            usage();
+        // Decoding mostly waits for the disk; the calculations share the
+        // cores.
+        if (decoders <= 0)
+            decoders = Math.max(1, threads / 4);
+        if (movers <= 0)
+            movers = Math.max(1, threads / 2);
+        if (blushers <= 0)
+            blushers = Math.max(1, threads / 2);
+
+        IMoveCalculator moveCalculator = createMoveCalculator(moveCalc);
+        if (motionDir != null)
+            moveCalculator = new MoveCorrectionStore.StoringMoveCalculator(moveCalculator,
+                    new MoveCorrectionStore(new File(motionDir)));
+        IBlushCalculator blushCalculator = new BlushCalculatorImpl(FrameMemoryManager
+                .getInstance(), null);
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(output == null ? System.out
+                : new FileOutputStream(output), "UTF-8"));
+        List<Job> jobs = readManifest(new File(manifest));
+        long start = System.currentTimeMillis();
+        QubeBatch batch = new QubeBatch(out);
+        final BatchPipeline pipeline = new BatchPipeline(moveCalculator, blushCalculator, batch,
+                decoders, movers, blushers, queue, memory);
+
+        // Report the progress of the stages every 10 seconds.
+        Thread reporter = new Thread("Reporter") {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(10000);
+                        System.err.println(pipeline.getStatistics());
+                    }
+                } catch (InterruptedException ie) {
+                    // done
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
+
+        pipeline.process(jobs);
+        reporter.interrupt();
+        out.close();
+
+        System.err.println(pipeline.getStatistics());
+        System.err.println(String.format("%d runs done, %d failed in %.1f s", batch.getDone(),
+                batch.getFailed(), (System.currentTimeMillis() - start) / 1000.0));
+        System.exit(batch.getFailed() > 0 ? 1 : 0);
+    }
+}
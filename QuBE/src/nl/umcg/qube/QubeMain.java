@@ -21,6 +21,8 @@ package nl.umcg.qube;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -29,13 +31,19 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
 import nl.umcg.qube.io.DicomLoader;
+import nl.umcg.qube.io.LazyDicomSequence;
+import nl.umcg.qube.io.MoveCorrectionStore;
+import nl.umcg.qube.io.SequenceCache;
 import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
 import nl.umcg.qube.model.SequenceIdentifier;
 import nl.umcg.qube.process.BinaryMoveCalc;
 import nl.umcg.qube.process.BlushCalculatorImpl;
 import nl.umcg.qube.process.Caching;
 import nl.umcg.qube.process.IBlushCalculator;
 import nl.umcg.qube.process.IMoveCalculator;
+import nl.umcg.qube.process.PhaseCorrelationMoveCalc;
+import nl.umcg.qube.process.ProjectionMoveCalc;
 import nl.umcg.qube.ui.BlushScorePanel;
 
 /**
@@ -47,8 +55,14 @@ public class QubeMain extends JFrame {
 
     private JPanel mainPanel;
 
+    /** The sequence that is shown */
+    private CAGSequence current;
+
     private IBlushCalculator blushCalc = new BlushCalculatorImpl();
-    private IMoveCalculator moveCalc = new Caching.CachingMoveCalculator(new BinaryMoveCalc());
+
+    private IMoveCalculator moveCalc = new Caching.CachingMoveCalculator(createMoveCalculator());
+    private IMoveCalculator previewMoveCalc = new Caching.CachingMoveCalculator(
+            new ProjectionMoveCalc());
 
     public QubeMain(String[] args) {
         // TODO make pluggable movie providers, etc. configurable via command
@@ -67,11 +81,32 @@ public class QubeMain extends JFrame {
                     // Load a sequence from the chosen file.
                     SequenceIdentifier id = new SequenceIdentifier("", "", chooser
                             .getSelectedFile().getAbsolutePath());
+                    // Buffers of an earlier open of the same file, like
+                    // cached backgrounds, may no longer match it.
+                    FrameMemoryManager.getInstance().removeAll(id);
+                    // A lazily loaded sequence keeps its file and reader open
+                    // until it is closed. It reopens them when it is used
+                    // again, so it is closed before loading, which may fail.
+                    if (current instanceof LazyDicomSequence) {
+                        try {
+                            ((LazyDicomSequence) current).close();
+                        } catch (IOException ioe) {
+                            ioe.printStackTrace();
+                        }
+                    }
                     try {
-                        CAGSequence sequence = DicomLoader.loadFromFile(chooser.getSelectedFile(),
-                                id);
+                        // With -Dqube.lazyload=true, frames are only decoded
+                        // when they are shown or analysed.
+                        CAGSequence sequence = Boolean.getBoolean("qube.lazyload") ? DicomLoader
+                                .loadLazily(chooser.getSelectedFile(), id) : DicomLoader
+                                .loadFromFile(chooser.getSelectedFile(), id);
                         BlushScorePanel scorePanel = new BlushScorePanel(moveCalc, blushCalc);
+                        // With -Dqube.quickmove=true, a rough move correction
+                        // is shown until the precise one is done.
+                        if (Boolean.getBoolean("qube.quickmove"))
+                            scorePanel.setPreviewMoveCalculator(previewMoveCalc);
                         scorePanel.setSequence(sequence);
+                        current = sequence;
                         mainPanel.removeAll();
                         mainPanel.add(scorePanel);
                         mainPanel.validate();
@@ -96,10 +131,44 @@ public class QubeMain extends JFrame {
         setExtendedState(JFrame.MAXIMIZED_BOTH);
     }
 
+    /**
+     * Create the move calculator chosen with -Dqube.movecalc: "phase" for
+     * phase correlation and BinaryMoveCalc otherwise. When -Dqube.motion.dir
+     * is set, results are kept in a MoveCorrectionStore in that directory
+     * (which may be shared by several users).
+     */
+    private static IMoveCalculator createMoveCalculator() {
+        String calc = System.getProperty("qube.movecalc", "binary");
+        IMoveCalculator calculator;
+        if (calc.equals("phase"))
+            calculator = new PhaseCorrelationMoveCalc();
+        else
+            calculator = new BinaryMoveCalc();
+
+        String motionDir = System.getProperty("qube.motion.dir");
+        if (motionDir == null)
+            return calculator;
+        System.err.println("Storing panning corrections in " + motionDir);
+        return new MoveCorrectionStore.StoringMoveCalculator(calculator,
+                new MoveCorrectionStore(new File(motionDir)));
+    }
+
     /**
      * @param args
      */
     public static void main(String[] args) {
+        // Decoded sequences can be kept on disk, so that reopening a file is
+        // fast. This is off unless a cache size in MB is set with
+        // -Dqube.cache.size.
+        long cacheSize = Long.getLong("qube.cache.size", 0) << 20;
+        if (cacheSize > 0) {
+            File dir = new File(System.getProperty("user.home"), ".qube" + File.separator
+                    + "cache");
+            System.err.println("Caching decoded sequences in " + dir + ", at most "
+                    + (cacheSize >> 20) + " MB");
+            DicomLoader.setSequenceCache(new SequenceCache(dir, cacheSize,
+                    SequenceCache.DEFAULT_MAX_ENTRIES));
+        }
         new QubeMain(args);
     }
 
@@ -0,0 +1,127 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.bench;
+
+import java.util.Arrays;
+
+/**
+ * A single benchmark: a piece of work that is timed repeatedly with one set
+ * of parameters. Subclasses create their inputs in {@link #setUp()}, which is
+ * not timed, and do the work in {@link #run()}.
+ * 
+ * {@link #measure(int, int)} first runs the benchmark a number of times
+ * without timing it, so that the JIT compiler has optimized the code, and
+ * then times every invocation separately. The results of run() are folded
+ * into a checksum, so the JIT cannot remove the work as dead code.
+ * 
+ * @author mathijs
+ */
+public abstract class Benchmark {
+    protected final String name;
+    protected final String parameters;
+
+    private static volatile int sink;
+
+    /**
+     * @param name
+     *            The name of the code under test, like "MedianFilter.filter"
+     * @param parameters
+     *            A description of the parameters, like "size=512 window=35"
+     */
+    public Benchmark(String name, String parameters) {
+        this.name = name;
+        this.parameters = parameters;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Create the inputs. Called once before the benchmark is run.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Called before every invocation of {@link #run()}, to reset state like
+     * caches. Not timed.
+     */
+    public void prepare() throws Exception {
+    }
+
+    /**
+     * Do the work that is timed.
+     * 
+     * @return The result of the work
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Release the inputs. Called once after the benchmark is run.
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Run the benchmark and time every invocation.
+     * 
+     * @param warmup
+     *            The number of invocations to run before timing
+     * @param iterations
+     *            The number of invocations to time
+     * @return The time of every timed invocation in nanoseconds, sorted
+     */
+    public long[] measure(int warmup, int iterations) throws Exception {
+        setUp();
+        try {
+            for (int i = 0; i < warmup; i++) {
+                prepare();
+                consume(run());
+            }
+            long[] times = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                prepare();
+                long start = System.nanoTime();
+                Object result = run();
+                times[i] = System.nanoTime() - start;
+                consume(result);
+            }
+            Arrays.sort(times);
+            return times;
+        } finally {
+            tearDown();
+        }
+    }
+
+    private static void consume(Object result) {
+        if (result instanceof int[][]) {
+            for (int[] row : (int[][]) result)
+                sink += Arrays.hashCode(row);
+        } else if (result instanceof double[]) {
+            sink += Arrays.hashCode((double[]) result);
+        } else if (result != null) {
+            sink += result.hashCode();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.bench;
+
+import java.awt.Point;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.umcg.qube.io.DicomLoader;
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
+import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.model.Polygon;
+import nl.umcg.qube.model.SequenceIdentifier;
+import nl.umcg.qube.process.BinaryMoveCalc;
+import nl.umcg.qube.process.BlushCalculatorImpl;
+import nl.umcg.qube.process.IMoveCalculator;
+import nl.umcg.qube.process.MedianFilter;
+import nl.umcg.qube.process.PhaseCorrelationMoveCalc;
+import nl.umcg.qube.process.PolygonRasterizer;
+import nl.umcg.qube.process.ProjectionMoveCalc;
+import nl.umcg.qube.process.PyramidMoveCalc;
+import nl.umcg.qube.process.SharedPool;
+import nl.umcg.qube.process.TrimmedMean;
+
+/**
+ * Benchmarks of the processing kernels, on deterministic synthetic input (see
+ * {@link SyntheticSequence}). Run it before and after a change to the
+ * processing code to see what the change does to the speed:
+ * 
+ * KernelBenchmarks [-warmup n] [-iterations n] [-quick] [filter...]
+ * 
+ * Only the benchmarks whose name or parameters contain one of the filters are
+ * run. With -quick, only the smallest parameters are used. For every
+ * benchmark the minimum, median and maximum time of one invocation is
+ * printed in milliseconds.
+ * 
+ * @author mathijs
+ */
+public class KernelBenchmarks {
+    private static final long SEED = 42;
+
+    protected final boolean quick;
+    protected final int cores = Runtime.getRuntime().availableProcessors();
+    protected final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    public KernelBenchmarks(boolean quick) {
+        this.quick = quick;
+        addMedianFilter();
+        addMoveCalculators();
+        addBlushCalculator();
+        addRasterizer();
+        addTrimmedMean();
+        addDecoding();
+    }
+
+    public List<Benchmark> getBenchmarks() {
+        return benchmarks;
+    }
+
+    private int[] values(int... values) {
+        return quick ? new int[] { values[0] } : values;
+    }
+
+    protected void addMedianFilter() {
+        for (final int size : values(256, 512))
+            for (final int window : values(15, 35)) {
+                String params = "size=" + size + " window=" + window;
+                final SyntheticSequence synthetic = new SyntheticSequence(size, size, 1, SEED);
+                // The straightforward filter sorts every window, which takes
+                // minutes for the large windows.
+                if (window <= 15)
+                    benchmarks.add(new IntFilterBenchmark("MedianFilter.filter", params,
+                            synthetic) {
+                        public Object run() {
+                            return MedianFilter.filter(image, window);
+                        }
+                    });
+                benchmarks.add(new IntFilterBenchmark("MedianFilter.fastfilter", params,
+                        synthetic) {
+                    public Object run() {
+                        return MedianFilter.fastfilter(image, window);
+                    }
+                });
+                benchmarks.add(new IntFilterBenchmark("MedianFilter.fastfilter(percentile)",
+                        params + " percentile=25", synthetic) {
+                    public Object run() {
+                        return MedianFilter.fastfilter(image, window, 25);
+                    }
+                });
+                benchmarks.add(new IntFilterBenchmark("MedianFilter.fastBoundaryfilter(int)",
+                        params + " percentile=50", synthetic) {
+                    public Object run() {
+                        return MedianFilter.fastBoundaryfilter(image, window, 50);
+                    }
+                });
+                benchmarks.add(new IntFilterBenchmark("MedianFilter.constantTimeFilter", params,
+                        synthetic) {
+                    public Object run() {
+                        return MedianFilter.constantTimeFilter(image, window);
+                    }
+                });
+                benchmarks.add(new SequenceBenchmark("MedianFilter.fastBoundaryfilter", params,
+                        synthetic) {
+                    public Object run() {
+                        return MedianFilter.fastBoundaryfilter(sequence.getFrame(0), window);
+                    }
+                });
+                benchmarks.add(new SequenceBenchmark("MedianFilter.constantTimeBoundaryFilter",
+                        params, synthetic) {
+                    public Object run() {
+                        return MedianFilter.constantTimeBoundaryFilter(sequence.getFrame(0),
+                                window);
+                    }
+                });
+            }
+    }
+
+    protected void addMoveCalculators() {
+        // BinaryMoveCalc only handles 512x512 frames.
+        for (int frames : values(25, 50)) {
+            SyntheticSequence synthetic = new SyntheticSequence(512, 512, frames, SEED);
+            for (int threads : quick || cores == 1 ? new int[] { 1 } : new int[] { 1, cores })
+                addMoveCalculator("BinaryMoveCalc", "frames=" + frames + " threads=" + threads,
+                        synthetic, new BinaryMoveCalc(threads > 1 ? SharedPool.get() : null));
+            addMoveCalculator("PyramidMoveCalc", "frames=" + frames, synthetic,
+                    new PyramidMoveCalc());
+            addMoveCalculator("PhaseCorrelationMoveCalc", "frames=" + frames, synthetic,
+                    new PhaseCorrelationMoveCalc());
+            addMoveCalculator("ProjectionMoveCalc", "frames=" + frames, synthetic,
+                    new ProjectionMoveCalc());
+        }
+    }
+
+    private void addMoveCalculator(String name, String params, SyntheticSequence synthetic,
+            final IMoveCalculator calculator) {
+        benchmarks.add(new SequenceBenchmark(name, params, synthetic) {
+            public Object run() {
+                return calculator.getMoveCorrection(sequence);
+            }
+        });
+    }
+
+    protected void addBlushCalculator() {
+        for (int frames : values(25, 50))
+            for (final int roi : values(40, 100, 200))
+                for (final int threads : quick || cores == 1 ? new int[] { 1 } : new int[] { 1,
+                        cores })
+                    for (final boolean cached : new boolean[] { false, true }) {
+                        final SyntheticSequence synthetic = new SyntheticSequence(512, 512,
+                                frames, SEED);
+                        benchmarks.add(new SequenceBenchmark("BlushCalculatorImpl", "frames="
+                                + frames + " roi=" + roi + " threads=" + threads
+                                + (cached ? " backgrounds=cached" : " backgrounds=cold"),
+                                synthetic) {
+                            BlushCalculatorImpl calculator;
+                            Polygon polygon;
+                            MoveCorrection panning;
+
+                            public void setUp() {
+                                super.setUp();
+                                calculator = new BlushCalculatorImpl(FrameMemoryManager
+                                        .getInstance(), threads > 1 ? SharedPool.get() : null);
+                                polygon = SyntheticSequence.square(synthetic.getBlushCenter(),
+                                        roi);
+                                panning = synthetic.getPanning();
+                            }
+
+                            public void prepare() {
+                                if (!cached)
+                                    FrameMemoryManager.getInstance().removeAll(sequence.getID());
+                            }
+
+                            public Object run() {
+                                return calculator.calculate(sequence, polygon, panning).curve;
+                            }
+
+                            public void tearDown() {
+                                FrameMemoryManager.getInstance().removeAll(sequence.getID());
+                                super.tearDown();
+                            }
+                        });
+                    }
+    }
+
+    protected void addRasterizer() {
+        for (final int roi : values(40, 100, 300)) {
+            // A polygon with many points, like one drawn by hand
+            Point[] points = new Point[32];
+            for (int i = 0; i < points.length; i++) {
+                double angle = 2 * Math.PI * i / points.length;
+                double r = roi / 2.0 * (i % 2 == 0 ? 1 : 0.8);
+                points[i] = new Point(256 + (int) (r * Math.cos(angle)), 256 + (int) (r * Math
+                        .sin(angle)));
+            }
+            final Polygon polygon = new Polygon(points);
+            benchmarks.add(new Benchmark("PolygonRasterizer.findBlocks", "roi=" + roi
+                    + " block=5") {
+                public Object run() {
+                    PolygonRasterizer rasterizer = new PolygonRasterizer();
+                    rasterizer.scan(polygon);
+                    return rasterizer.findBlocks(5);
+                }
+            });
+            benchmarks.add(new Benchmark("PolygonRasterizer.rasterize", "roi=" + roi) {
+                public Object run() {
+                    return PolygonRasterizer.rasterize(polygon).size();
+                }
+            });
+        }
+    }
+
+    protected void addTrimmedMean() {
+        // A single call takes far less than the resolution of the timer, so
+        // every invocation does a batch of calls.
+        final int calls = 10000;
+        for (final int size : values(25, 1000)) {
+            final double[] input = new double[calls * size];
+            Random random = new Random(SEED);
+            for (int i = 0; i < input.length; i++)
+                input[i] = random.nextGaussian() * 10 + 30;
+            String params = "size=" + size + " calls=" + calls;
+            // The fractions used for the blocks and frames of the blush
+            // calculation.
+            benchmarks.add(new TrimmedMeanBenchmark("TrimmedMean.trimMean", params
+                    + " keep=0.75-1", input) {
+                public Object run() {
+                    double sum = 0;
+                    for (int i = 0; i < calls; i++)
+                        sum += TrimmedMean.trimMean(values, i * size, size, 0.75, 1);
+                    return sum;
+                }
+            });
+            benchmarks.add(new TrimmedMeanBenchmark("TrimmedMean.trimMean", params
+                    + " keep=0.5-1", input) {
+                public Object run() {
+                    double sum = 0;
+                    for (int i = 0; i < calls; i++)
+                        sum += TrimmedMean.trimMean(values, i * size, size, 0.5, 1);
+                    return sum;
+                }
+            });
+            benchmarks.add(new TrimmedMeanBenchmark("TrimmedMean.trimMean", params
+                    + " keep=0.25-0.75", input) {
+                public Object run() {
+                    double sum = 0;
+                    for (int i = 0; i < calls; i++)
+                        sum += TrimmedMean.trimMean(values, i * size, size, 0.25, 0.75);
+                    return sum;
+                }
+            });
+            benchmarks.add(new TrimmedMeanBenchmark("TrimmedMean.discardOutliers", params
+                    + " limit=2", input) {
+                public Object run() {
+                    double sum = 0;
+                    for (int i = 0; i < calls; i++)
+                        sum += TrimmedMean.discardOutliers(values, i * size, size, 2);
+                    return sum;
+                }
+            });
+        }
+    }
+
+    protected void addDecoding() {
+        for (final int size : values(512, 1024))
+            for (final int bits : values(8, 12))
+                for (final int frames : values(25, 50)) {
+                    final SyntheticSequence synthetic = new SyntheticSequence(size, size,
+                            frames, SEED);
+                    String params = "size=" + size + " bits=" + bits + " frames=" + frames;
+                    benchmarks.add(new DicomBenchmark("DicomLoader.loadFromFile", params,
+                            synthetic, bits) {
+                        public Object run() throws Exception {
+                            return DicomLoader.loadFromFile(file, id);
+                        }
+                    });
+                }
+    }
+
+    /**
+     * A benchmark on a synthetic sequence, which is created in setUp.
+     */
+    protected static abstract class SequenceBenchmark extends Benchmark {
+        protected final SyntheticSequence synthetic;
+        protected CAGSequence sequence;
+
+        public SequenceBenchmark(String name, String parameters, SyntheticSequence synthetic) {
+            super(name, parameters);
+            this.synthetic = synthetic;
+        }
+
+        public void setUp() {
+            sequence = synthetic.createSequence();
+        }
+
+        public void tearDown() {
+            sequence = null;
+        }
+    }
+
+    /**
+     * A benchmark on the first frame of a synthetic sequence as int[][].
+     */
+    protected static abstract class IntFilterBenchmark extends Benchmark {
+        protected final SyntheticSequence synthetic;
+        protected int[][] image;
+
+        public IntFilterBenchmark(String name, String parameters, SyntheticSequence synthetic) {
+            super(name, parameters);
+            this.synthetic = synthetic;
+        }
+
+        public void setUp() {
+            CAGFrame frame = synthetic.createSequence().getFrame(0);
+            image = new int[frame.getHeight()][frame.getWidth()];
+            for (int y = 0; y < frame.getHeight(); y++)
+                for (int x = 0; x < frame.getWidth(); x++)
+                    image[y][x] = frame.getValue(x, y);
+        }
+
+        public void tearDown() {
+            image = null;
+        }
+    }
+
+    /**
+     * A benchmark on batches of random values. TrimmedMean reorders the
+     * values it works on, so they are restored before every invocation.
+     */
+    protected static abstract class TrimmedMeanBenchmark extends Benchmark {
+        protected final double[] input, values;
+
+        public TrimmedMeanBenchmark(String name, String parameters, double[] input) {
+            super(name, parameters);
+            this.input = input;
+            this.values = new double[input.length];
+        }
+
+        public void prepare() {
+            System.arraycopy(input, 0, values, 0, input.length);
+        }
+    }
+
+    /**
+     * A benchmark on a synthetic sequence that is written to a temporary
+     * DICOM file in setUp.
+     */
+    protected static abstract class DicomBenchmark extends Benchmark {
+        protected final SyntheticSequence synthetic;
+        protected final int bits;
+        protected File file;
+        protected SequenceIdentifier id;
+
+        public DicomBenchmark(String name, String parameters, SyntheticSequence synthetic,
+                int bits) {
+            super(name, parameters);
+            this.synthetic = synthetic;
+            this.bits = bits;
+        }
+
+        public void setUp() throws Exception {
+            file = File.createTempFile("qube-bench", ".dcm");
+            file.deleteOnExit();
+            synthetic.writeDicom(file, bits);
+            id = new SequenceIdentifier("", "", file.getAbsolutePath());
+        }
+
+        public void tearDown() {
+            FrameMemoryManager.getInstance().removeAll(id);
+            file.delete();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: KernelBenchmarks [-warmup n] [-iterations n] [-quick] "
+                + "[filter...]");
+        System.exit(2);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int warmup = 3, iterations = 10;
+        boolean quick = false;
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            boolean value = i + 1 < args.length;
+            if (args[i].equals("-warmup") && value)
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-iterations") && value)
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-quick"))
+                quick = true;
+            else if (!args[i].startsWith("-"))
+                filters.add(args[i]);
+            else
+                usage();
+        }
+        if (warmup < 0 || iterations < 1)
+            usage();
+
+        // Decoding must really decode.
+        DicomLoader.setSequenceCache(null);
+
+        System.out.println(String.format("%-40s %-50s %10s %10s %10s", "benchmark",
+                "parameters", "min ms", "median ms", "max ms"));
+        for (Benchmark benchmark : new KernelBenchmarks(quick).getBenchmarks()) {
+            String description = benchmark.getName() + " " + benchmark.getParameters();
+            boolean selected = filters.isEmpty();
+            for (String filter : filters)
+                selected |= description.contains(filter);
+            if (!selected)
+                continue;
+
+            long[] times = benchmark.measure(warmup, iterations);
+            System.out.println(String.format("%-40s %-50s %10.3f %10.3f %10.3f", benchmark
+                    .getName(), benchmark.getParameters(), times[0] / 1e6,
+                    times[times.length / 2] / 1e6, times[times.length - 1] / 1e6));
+        }
+    }
+}
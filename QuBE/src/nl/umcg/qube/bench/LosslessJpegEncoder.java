@@ -0,0 +1,171 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.bench;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A minimal encoder for lossless JPEG (process 14, first order prediction, as
+ * in the DICOM transfer syntax 1.2.840.10008.1.2.4.70) of single component
+ * images. It exists so that synthetic test runs can be written in the format
+ * of real angiography runs without a native codec; it is not tuned for speed
+ * or compression.
+ * 
+ * Every difference category is coded with the same fixed Huffman table.
+ * 
+ * @author mathijs
+ */
+class LosslessJpegEncoder {
+    /** The code length of each difference category (0-16) */
+    private static final int[] LENGTHS = { 2, 3, 3, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9 };
+
+    private static final int[] CODES = new int[LENGTHS.length];
+
+    static {
+        // Canonical Huffman codes: the categories are already sorted by code
+        // length.
+        int code = 0;
+        for (int i = 0; i < LENGTHS.length; i++) {
+            if (i > 0)
+                code = (code + 1) << (LENGTHS[i] - LENGTHS[i - 1]);
+            CODES[i] = code;
+        }
+    }
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int bitBuffer, bitCount;
+
+    private LosslessJpegEncoder() {
+    }
+
+    /**
+     * Encode an image.
+     * 
+     * @param values
+     *            The pixel values, row by row
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param precision
+     *            The number of bits per pixel (2-16)
+     * @return The JPEG stream, from SOI to EOI
+     */
+    static byte[] encode(int[] values, int width, int height, int precision) {
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder();
+        encoder.writeHeaders(width, height, precision);
+        encoder.writeScan(values, width, height, precision);
+        encoder.marker(0xD9); // EOI
+        return encoder.out.toByteArray();
+    }
+
+    private void marker(int marker) {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    private void write16(int value) {
+        out.write(value >> 8);
+        out.write(value & 0xFF);
+    }
+
+    private void writeHeaders(int width, int height, int precision) {
+        marker(0xD8); // SOI
+
+        // DHT: table 0 for the DC (lossless) coefficients
+        marker(0xC4);
+        write16(2 + 1 + 16 + LENGTHS.length);
+        out.write(0x00);
+        for (int length = 1; length <= 16; length++) {
+            int count = 0;
+            for (int l : LENGTHS)
+                if (l == length)
+                    count++;
+            out.write(count);
+        }
+        for (int i = 0; i < LENGTHS.length; i++)
+            out.write(i);
+
+        // SOF3: lossless, Huffman coded
+        marker(0xC3);
+        write16(11);
+        out.write(precision);
+        write16(height);
+        write16(width);
+        out.write(1); // components
+        out.write(1); // component id
+        out.write(0x11); // no subsampling
+        out.write(0); // no quantization table
+
+        // SOS
+        marker(0xDA);
+        write16(8);
+        out.write(1); // components
+        out.write(1); // component id
+        out.write(0x00); // Huffman table 0
+        out.write(1); // predictor 1: the pixel to the left
+        out.write(0); // end of spectral selection, unused
+        out.write(0); // no point transform
+    }
+
+    private void writeScan(int[] values, int width, int height, int precision) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                // The first pixel is predicted from the middle of the range,
+                // the first pixel of every other row from the one above it.
+                int prediction;
+                if (x > 0)
+                    prediction = values[row + x - 1];
+                else if (y > 0)
+                    prediction = values[row - width];
+                else
+                    prediction = 1 << (precision - 1);
+                // Differences are taken modulo 2^16.
+                int diff = (short) (values[row + x] - prediction);
+                int magnitude = Math.abs(diff);
+                int category = magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+                if (diff == -32768)
+                    category = 16;
+                writeBits(CODES[category], LENGTHS[category]);
+                // Category 16 has no additional bits.
+                if (category > 0 && category < 16)
+                    writeBits(diff > 0 ? diff : diff - 1, category);
+            }
+        }
+        // Pad the last byte with ones.
+        if (bitCount > 0)
+            writeBits(0x7F, 8 - bitCount);
+    }
+
+    private void writeBits(int bits, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            bitBuffer = (bitBuffer << 1) | ((bits >> i) & 1);
+            if (++bitCount == 8) {
+                out.write(bitBuffer);
+                // A data byte 0xFF is followed by a 0 so it is not read as a
+                // marker.
+                if (bitBuffer == 0xFF)
+                    out.write(0);
+                bitBuffer = 0;
+                bitCount = 0;
+            }
+        }
+    }
+}
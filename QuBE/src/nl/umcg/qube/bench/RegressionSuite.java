@@ -0,0 +1,416 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.bench;
+
+import java.awt.Point;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.umcg.qube.io.DicomLoader;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
+import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.model.Polygon;
+import nl.umcg.qube.model.SequenceIdentifier;
+import nl.umcg.qube.process.BinaryMoveCalc;
+import nl.umcg.qube.process.BlushCalculatorImpl;
+import nl.umcg.qube.process.IBlushCalculator;
+import nl.umcg.qube.process.IMoveCalculator;
+import nl.umcg.qube.process.PhaseCorrelationMoveCalc;
+import nl.umcg.qube.process.ProjectionMoveCalc;
+import nl.umcg.qube.process.PyramidMoveCalc;
+
+/**
+ * Checks that the whole processing chain still gives the same results, and
+ * how long every stage takes. For a number of synthetic runs (see
+ * {@link SyntheticSequence}) it writes a lossless JPEG DICOM file, loads it
+ * with {@link DicomLoader}, calculates the panning with
+ * {@link BinaryMoveCalc} and the QuBE value with {@link BlushCalculatorImpl}.
+ * 
+ * A run passes when the panning matches the true panning of the synthetic
+ * run, the blush curve follows the true blush, and the QuBE value equals the
+ * recorded golden value. The QuBE value has no exact true value (it depends on
+ * the background estimate), so the golden values are the results of the
+ * implementation at the time they were recorded; a faster implementation must
+ * give the same values. The faster move calculators are checked against the
+ * true panning too, each within its own tolerance. For every stage, the wall
+ * clock time and the bytes allocated by the calculating thread are printed.
+ * The calculators use a single thread, so that the allocations are all
+ * counted.
+ * 
+ * Most runs use the default scene of SyntheticSequence. The "static" run uses
+ * an irregular scene with more noise and structures that do not move with the
+ * panning, which aliases calculators that only look at the strongest
+ * periodic structure or ignore what stays in place. The "pan" runs use the
+ * same scene with a steady table pan, faster than BinaryMoveCalc can follow.
+ * Only the panning of the calculators that search that far is checked for
+ * them, as the blush region leaves the frames.
+ * 
+ * The "speed" check times the calculators that are meant to be fast, on 125
+ * frames of 512 x 512 pixels of the "static" scene, and fails when the best of SPEED_ROUNDS rounds
+ * takes longer than allowed. It runs when no runs are selected, or when
+ * "speed" is. 
+ * Usage: RegressionSuite [-uncompressed] [-record] [-tolerance t] [-dir
+ * directory] [run...]
+ * 
+ * With -uncompressed, the files are written without compression, for systems
+ * without a lossless JPEG codec. Lossless compression gives the same pixels,
+ * so the golden values are the same. With -record, the golden values are
+ * printed instead of checked. The tolerance is relative (default 1e-9).
+ * 
+ * @author mathijs
+ */
+public class RegressionSuite {
+    /** The minimal correlation of the blush curve with the true blush */
+    private static final double MIN_CORRELATION = 0.9;
+    /** The number of times the speed check runs a calculator */
+    private static final int SPEED_ROUNDS = 20;
+
+    /**
+     * A synthetic run with its golden QuBE value.
+     */
+    protected static class Run {
+        final String name;
+        final int size, frames, bits;
+        final long seed;
+        final double golden;
+        /** Whether the run has an irregular scene with static structures */
+        final boolean hard;
+        /** The steady pan per frame, or 0 for the random walk */
+        final int vx, vy;
+
+        Run(int size, int frames, int bits, long seed, double golden) {
+            this(size, frames, bits, seed, golden, false);
+        }
+
+        Run(int size, int frames, int bits, long seed, double golden, boolean hard) {
+            this(size, frames, bits, seed, golden, hard, 0, 0);
+        }
+
+        /**
+         * A run with a steady pan, which has no golden value.
+         */
+        Run(int size, int frames, int bits, long seed, int vx, int vy) {
+            this(size, frames, bits, seed, Double.NaN, true, vx, vy);
+        }
+
+        private Run(int size, int frames, int bits, long seed, double golden, boolean hard,
+                int vx, int vy) {
+            this.name = size + "x" + size + "x" + frames + "-" + bits + "bit-" + seed
+                    + (vx != 0 || vy != 0 ? "-pan" + vx + "," + vy : hard ? "-static" : "");
+            this.size = size;
+            this.frames = frames;
+            this.bits = bits;
+            this.seed = seed;
+            this.golden = golden;
+            this.hard = hard;
+            this.vx = vx;
+            this.vy = vy;
+        }
+
+        boolean isPan() {
+            return vx != 0 || vy != 0;
+        }
+
+        SyntheticSequence create() {
+            SyntheticSequence synthetic = new SyntheticSequence(size, size, frames, seed);
+            if (hard) {
+                synthetic.setIrregular(true);
+                synthetic.setStaticStructure(true);
+                synthetic.setNoise(6);
+            }
+            if (isPan())
+                synthetic.setPan(vx, vy);
+            return synthetic;
+        }
+    }
+
+    protected static final Run[] RUNS = { new Run(512, 30, 8, 1, 23.82382297455612),
+            new Run(512, 60, 8, 2, 24.38415248377248),
+            new Run(512, 40, 12, 3, 24.28091683224493),
+            new Run(1024, 30, 12, 4, 24.261595963926982),
+            new Run(512, 60, 8, 1, 14.249635125896603, true),
+            new Run(512, 40, 8, 5, 8, -3), new Run(512, 40, 8, 6, -15, 15),
+            new Run(512, 40, 8, 7, 25, -10) };
+
+    /** The run on which the speed of the alternatives is checked */
+    protected static final Run SPEED_RUN = new Run(512, 125, 8, 1, Double.NaN, true);
+
+    /**
+     * A faster move calculator, with the largest error in pixels it may make
+     * on any frame, the largest pan per frame it can follow and the most
+     * milliseconds it may take for SPEED_RUN (0 when its speed is not checked).
+     */
+    protected static class Alternative {
+        final String name;
+        final IMoveCalculator calculator;
+        final int maxError, maxPan;
+        final long maxMillis;
+
+        Alternative(String name, IMoveCalculator calculator, int maxError, int maxPan,
+                long maxMillis) {
+            this.name = name;
+            this.calculator = calculator;
+            this.maxError = maxError;
+            this.maxPan = maxPan;
+            this.maxMillis = maxMillis;
+        }
+    }
+
+    protected static final Alternative[] ALTERNATIVES = {
+            new Alternative("pyramid", new PyramidMoveCalc(), 0, 40, 0),
+            new Alternative("phase", new PhaseCorrelationMoveCalc(), 0, 40, 0),
+            new Alternative("projection", new ProjectionMoveCalc(), 0, 20, 100) };
+
+    protected final boolean compress, record;
+    protected final double tolerance;
+    protected final File directory;
+    protected final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    protected int failures;
+
+    public RegressionSuite(boolean compress, boolean record, double tolerance, File directory) {
+        this.compress = compress;
+        this.record = record;
+        this.tolerance = tolerance;
+        this.directory = directory;
+    }
+
+    /**
+     * The bytes allocated by the current thread so far, or -1 when the JVM
+     * cannot tell.
+     */
+    protected long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private long start, startBytes;
+
+    private void startStage() {
+        startBytes = allocatedBytes();
+        start = System.nanoTime();
+    }
+
+    private void endStage(Run run, String stage) {
+        long time = System.nanoTime() - start;
+        long bytes = allocatedBytes();
+        System.out.println(String.format("%-28s %-10s %10.1f ms %10s", run.name, stage,
+                time / 1e6, bytes < 0 || startBytes < 0 ? "n/a" : String.format("%.1f MB",
+                        (bytes - startBytes) / 1048576.0)));
+    }
+
+    private void fail(Run run, String message) {
+        System.out.println(run.name + " FAILED: " + message);
+        failures++;
+    }
+
+    /**
+     * Process one run and check the results.
+     */
+    public void check(Run run) throws Exception {
+        SyntheticSequence synthetic = run.create();
+        File file = new File(directory, run.name + ".dcm");
+        if (compress)
+            synthetic.writeJpegLosslessDicom(file, run.bits);
+        else
+            synthetic.writeDicom(file, run.bits);
+
+        try {
+            SequenceIdentifier id = new SequenceIdentifier("", "", file.getAbsolutePath());
+            startStage();
+            CAGSequence sequence = DicomLoader.loadFromFile(file, id);
+            endStage(run, "load");
+
+            // Large frames are downscaled by the loader, and so is the
+            // panning.
+            int downscale = run.size / sequence.getWidth();
+            MoveCorrection truth = synthetic.getPanning();
+            for (int i = 0; i < run.frames; i++) {
+                truth.dx[i] = Math.round((float) truth.dx[i] / downscale);
+                truth.dy[i] = Math.round((float) truth.dy[i] / downscale);
+            }
+
+            // Rounding the downscaled panning can be off by one pixel.
+            int rounding = downscale > 1 ? 1 : 0;
+            for (Alternative alternative : ALTERNATIVES) {
+                if (Math.max(Math.abs(run.vx), Math.abs(run.vy)) > alternative.maxPan)
+                    continue;
+                startStage();
+                MoveCorrection amc = alternative.calculator.getMoveCorrection(sequence);
+                endStage(run, alternative.name);
+                checkPanning(run, alternative.name + ": ", amc, truth, alternative.maxError
+                        + rounding);
+            }
+            if (run.isPan())
+                return;
+
+            IMoveCalculator moveCalculator = new BinaryMoveCalc(null);
+            startStage();
+            MoveCorrection mc = moveCalculator.getMoveCorrection(sequence);
+            endStage(run, "move");
+            checkPanning(run, "", mc, truth, rounding);
+
+            Point center = synthetic.getBlushCenter();
+            Polygon polygon = SyntheticSequence.square(new Point(center.x / downscale, center.y
+                    / downscale), synthetic.getBlushRadius() * 14 / 10 / downscale);
+            IBlushCalculator blushCalculator = new BlushCalculatorImpl(new FrameMemoryManager(
+                    256L << 20), null);
+            startStage();
+            IBlushCalculator.CalculationResult result = blushCalculator.calculate(sequence,
+                    polygon, mc);
+            endStage(run, "blush");
+
+            double correlation = correlation(result.curve, synthetic.getBlushCurve(), Math.min(
+                    125, run.frames));
+            if (correlation < MIN_CORRELATION)
+                fail(run, "the blush curve does not follow the true blush, correlation "
+                        + correlation);
+
+            if (record) {
+                System.out.println(run.name + " golden " + result.qubeValue);
+            } else if (!(Math.abs(result.qubeValue - run.golden) <= tolerance
+                    * Math.abs(run.golden))) {
+                fail(run, "QuBE value " + result.qubeValue + ", golden value " + run.golden);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Check that the alternatives with a time limit calculate the panning of
+     * SPEED_RUN in time. The best of SPEED_ROUNDS rounds counts, so that the
+     * first rounds can warm up the JIT compiler.
+     */
+    public void checkSpeed() {
+        CAGSequence sequence = SPEED_RUN.create().createSequence();
+        for (Alternative alternative : ALTERNATIVES) {
+            if (alternative.maxMillis <= 0)
+                continue;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < SPEED_ROUNDS; round++) {
+                long start = System.nanoTime();
+                alternative.calculator.getMoveCorrection(sequence);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-28s %-10s %10.1f ms", SPEED_RUN.name,
+                    alternative.name, best / 1e6));
+            if (best > alternative.maxMillis * 1000000)
+                fail(SPEED_RUN, alternative.name + " took " + best / 1000000 + " ms, more than "
+                        + alternative.maxMillis + " ms");
+        }
+    }
+
+    /**
+     * Check that a panning is within maxError pixels of the true panning on
+     * every frame.
+     */
+    private void checkPanning(Run run, String calculator, MoveCorrection mc,
+            MoveCorrection truth, int maxError) {
+        int wrong = 0, largest = 0;
+        for (int i = 0; i < run.frames; i++) {
+            int error = Math.max(Math.abs(mc.dx[i] - truth.dx[i]), Math.abs(mc.dy[i]
+                    - truth.dy[i]));
+            if (error > maxError)
+                wrong++;
+            largest = Math.max(largest, error);
+        }
+        if (wrong > 0)
+            fail(run, calculator + wrong + " frames have the wrong panning, up to " + largest
+                    + " pixels");
+    }
+
+    /**
+     * The Pearson correlation of the first n values of two curves.
+     */
+    protected static double correlation(double[] a, double[] b, int n) {
+        double ma = 0, mb = 0;
+        for (int i = 0; i < n; i++) {
+            ma += a[i] / n;
+            mb += b[i] / n;
+        }
+        double sab = 0, saa = 0, sbb = 0;
+        for (int i = 0; i < n; i++) {
+            sab += (a[i] - ma) * (b[i] - mb);
+            saa += (a[i] - ma) * (a[i] - ma);
+            sbb += (b[i] - mb) * (b[i] - mb);
+        }
+        return sab / Math.sqrt(saa * sbb);
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RegressionSuite [-uncompressed] [-record] [-tolerance t] "
+                + "[-dir directory] [run...]");
+        System.exit(2);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        boolean compress = true, record = false;
+        double tolerance = 1e-9;
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        List<String> selected = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            boolean value = i + 1 < args.length;
+            if (args[i].equals("-uncompressed"))
+                compress = false;
+            else if (args[i].equals("-record"))
+                record = true;
+            else if (args[i].equals("-tolerance") && value)
+                tolerance = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-dir") && value)
+                directory = new File(args[++i]);
+            else if (!args[i].startsWith("-"))
+                selected.add(args[i]);
+            else
+                usage();
+        }
+
+        // Every run must really be decoded.
+        DicomLoader.setSequenceCache(null);
+
+        RegressionSuite suite = new RegressionSuite(compress, record, tolerance, directory);
+        for (Run run : RUNS)
+            if (selected.isEmpty() || selected.contains(run.name))
+                suite.check(run);
+        if (selected.isEmpty() || selected.contains("speed"))
+            suite.checkSpeed();
+
+        if (suite.getFailures() > 0) {
+            System.out.println(suite.getFailures() + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+}
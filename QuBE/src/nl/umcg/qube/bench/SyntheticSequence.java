@@ -0,0 +1,553 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.bench;
+
+import java.awt.Point;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.model.Polygon;
+import nl.umcg.qube.model.SequenceIdentifier;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TimeAttribute;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+/**
+ * A deterministic synthetic angiography run, to benchmark and check the
+ * processing code without patient data. The same parameters and seed always
+ * give exactly the same pixels.
+ * 
+ * Every frame shows a fixed textured background (smooth variations plus a
+ * grid of dark dots, like vessels and ribs give a real run a structure to
+ * match) under a random walk of panning, with Gaussian noise on top. A disc
+ * in the middle of the scene darkens and brightens again following a
+ * Gaussian curve: the blush. Frame i shows the scene shifted by the panning
+ * of frame i, so that {@link #getPanning()} is exactly the MoveCorrection a
+ * move calculator should find.
+ * 
+ * The default scene repeats itself, which makes it easy to match. For a
+ * harder run, {@link #setIrregular(boolean)} replaces it by smoothed random
+ * noise with random vessels, and {@link #setStaticStructure(boolean)} adds
+ * structures that do not pan with the scene, like the collimator and the
+ * annotations of a real run.
+ * 
+ * @author mathijs
+ */
+public class SyntheticSequence {
+    /** The largest panning in any direction */
+    public static final int MAX_PAN = 24;
+
+    protected final int width, height, frames;
+    protected final long seed;
+
+    /** The panning of every frame, the middle frame has offset 0 */
+    protected final int[] dx, dy;
+
+    /** The darkening of the blush region in every frame */
+    protected final double[] blush;
+
+    protected double noise = 4, blushDepth = 30;
+
+    protected boolean irregular, staticStructure;
+
+    /** How much larger than a frame the scene is on every side */
+    protected int margin = MAX_PAN;
+
+    /** The scene, margin pixels larger than a frame on every side */
+    protected byte[] scene;
+
+    public SyntheticSequence(int width, int height, int frames, long seed) {
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        this.seed = seed;
+
+        // A random walk of at most 2 pixels per frame, kept within MAX_PAN of
+        // the middle frame.
+        Random random = new Random(seed);
+        dx = new int[frames];
+        dy = new int[frames];
+        for (int i = 1; i < frames; i++) {
+            dx[i] = Math.max(-MAX_PAN / 2, Math.min(MAX_PAN / 2, dx[i - 1] + random.nextInt(5)
+                    - 2));
+            dy[i] = Math.max(-MAX_PAN / 2, Math.min(MAX_PAN / 2, dy[i - 1] + random.nextInt(5)
+                    - 2));
+        }
+        int mx = dx[frames / 2], my = dy[frames / 2];
+        for (int i = 0; i < frames; i++) {
+            dx[i] -= mx;
+            dy[i] -= my;
+        }
+
+        blush = new double[frames];
+        for (int i = 0; i < frames; i++)
+            blush[i] = Math.exp(-Math.pow((i - frames / 2.0) / (frames / 6.0), 2));
+    }
+
+    /**
+     * Replace the random walk by a steady pan of (vx, vy) pixels per frame, as
+     * when the table is moved during the run. The scene grows to cover the
+     * whole pan.
+     */
+    public synchronized void setPan(int vx, int vy) {
+        for (int i = 0; i < frames; i++) {
+            dx[i] = (i - frames / 2) * vx;
+            dy[i] = (i - frames / 2) * vy;
+        }
+        margin = MAX_PAN;
+        for (int i = 0; i < frames; i++)
+            margin = Math.max(margin, Math.max(Math.abs(dx[i]), Math.abs(dy[i])));
+        scene = null;
+    }
+
+    /**
+     * Set the standard deviation of the noise on every pixel (default 4).
+     */
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    /**
+     * Set how much the blush region darkens at the peak of the blush (default
+     * 30 grey values).
+     */
+    public void setBlushDepth(double depth) {
+        this.blushDepth = depth;
+    }
+
+    /**
+     * Use a scene without repeating structure: smoothed random noise with
+     * random dark vessels (default false).
+     */
+    public synchronized void setIrregular(boolean irregular) {
+        this.irregular = irregular;
+        scene = null;
+    }
+
+    /**
+     * Add structures that stay at the same place in every frame: a dark
+     * collimator edge along the top of the frames and a bright marker in the
+     * lower right corner (default false).
+     */
+    public void setStaticStructure(boolean staticStructure) {
+        this.staticStructure = staticStructure;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int frameCount() {
+        return frames;
+    }
+
+    /**
+     * @return The true panning of every frame
+     */
+    public MoveCorrection getPanning() {
+        return new MoveCorrection(dx.clone(), dy.clone());
+    }
+
+    /**
+     * @return The darkening of the blush region in every frame, relative to
+     *         the peak
+     */
+    public double[] getBlushCurve() {
+        double[] curve = new double[frames];
+        for (int i = 0; i < frames; i++)
+            curve[i] = blush[i] * blushDepth;
+        return curve;
+    }
+
+    /**
+     * @return The center of the blush region in the scene
+     */
+    public Point getBlushCenter() {
+        return new Point(width / 2, height * 49 / 100);
+    }
+
+    public int getBlushRadius() {
+        return Math.min(width, height) * 12 / 100;
+    }
+
+    /**
+     * Create a square polygon in the scene.
+     * 
+     * @param center
+     *            The center of the square
+     * @param size
+     *            The length of the sides
+     */
+    public static Polygon square(Point center, int size) {
+        int x0 = center.x - size / 2, y0 = center.y - size / 2;
+        return new Polygon(new Point[] { new Point(x0, y0), new Point(x0 + size, y0),
+                new Point(x0 + size, y0 + size), new Point(x0, y0 + size) });
+    }
+
+    /**
+     * @return A polygon just inside the blush region
+     */
+    public Polygon getBlushPolygon() {
+        return square(getBlushCenter(), getBlushRadius() * 14 / 10);
+    }
+
+    protected synchronized byte[] getScene() {
+        if (scene != null)
+            return scene;
+        int sw = width + 2 * margin, sh = height + 2 * margin;
+        // The structures are scaled with the frame, so that a downscaled run
+        // looks like the same scene.
+        double scale = 512.0 / Math.min(width, height);
+        scene = new byte[sw * sh];
+        if (irregular) {
+            irregularScene(sw, sh, scale);
+            return scene;
+        }
+        for (int y = 0; y < sh; y++)
+            for (int x = 0; x < sw; x++) {
+                double sx = (x - margin) * scale, sy = (y - margin) * scale;
+                double v = 128 + 60 * Math.sin(sx / 37.0) * Math.cos(sy / 23.0) + 20
+                        * Math.sin((sx + sy) / 11.0);
+                if ((((int) sx / 7) * 31 + ((int) sy / 9) * 17) % 13 == 0)
+                    v -= 40;
+                scene[y * sw + x] = (byte) Math.max(0, Math.min(255, (int) v));
+            }
+        return scene;
+    }
+
+    /**
+     * Fill the scene with smoothed random noise at three scales, crossed by
+     * random dark vessels.
+     */
+    private void irregularScene(int sw, int sh, double scale) {
+        Random random = new Random(seed * 7919 + 17);
+        double[] v = new double[sw * sh];
+        Arrays.fill(v, 128);
+        smoothNoise(random, v, sw, sh, 64 / scale, 10);
+        smoothNoise(random, v, sw, sh, 20 / scale, 5);
+        smoothNoise(random, v, sw, sh, 6 / scale, 2);
+
+        // A vessel is a random walk of a few hundred steps with a slowly
+        // changing direction. A larger scene for a pan gets more of them.
+        int vessels = (int) Math.round(24.0 * sw * sh
+                / ((width + 2 * MAX_PAN) * (height + 2 * MAX_PAN)));
+        for (int k = 0; k < vessels; k++) {
+            double x = random.nextDouble() * sw, y = random.nextDouble() * sh;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double radius = (1.5 + random.nextDouble() * 2.5) / scale;
+            int r = (int) Math.ceil(radius);
+            for (int step = 0; step < 400 / scale; step++) {
+                angle += random.nextGaussian() * 0.08;
+                x += Math.cos(angle);
+                y += Math.sin(angle);
+                for (int py = (int) y - r; py <= (int) y + r; py++)
+                    for (int px = (int) x - r; px <= (int) x + r; px++)
+                        if (px >= 0 && py >= 0 && px < sw && py < sh
+                                && (px - x) * (px - x) + (py - y) * (py - y) <= radius * radius)
+                            v[py * sw + px] = Math.min(v[py * sw + px], 128 - 20
+                                    + (v[py * sw + px] - 128) / 2);
+            }
+        }
+
+        for (int p = 0; p < v.length; p++)
+            scene[p] = (byte) Math.max(0, Math.min(255, (int) v[p]));
+    }
+
+    /**
+     * Add noise that is smooth over distances of about cell pixels: random
+     * values on a grid, interpolated bilinearly.
+     */
+    private static void smoothNoise(Random random, double[] v, int sw, int sh, double cell,
+            double amplitude) {
+        int gw = (int) (sw / cell) + 2, gh = (int) (sh / cell) + 2;
+        double[] grid = new double[gw * gh];
+        for (int g = 0; g < grid.length; g++)
+            grid[g] = random.nextGaussian() * amplitude;
+        for (int y = 0; y < sh; y++) {
+            double gy = y / cell;
+            int iy = (int) gy;
+            double fy = gy - iy;
+            for (int x = 0; x < sw; x++) {
+                double gx = x / cell;
+                int ix = (int) gx;
+                double fx = gx - ix;
+                double top = grid[iy * gw + ix] * (1 - fx) + grid[iy * gw + ix + 1] * fx;
+                double bottom = grid[(iy + 1) * gw + ix] * (1 - fx) + grid[(iy + 1) * gw + ix + 1]
+                        * fx;
+                v[y * sw + x] += top * (1 - fy) + bottom * fy;
+            }
+        }
+    }
+
+    /**
+     * Calculate the pixels of a frame.
+     * 
+     * @param i
+     *            The frame number
+     * @param maxValue
+     *            The value that white is scaled to: 255 for 8-bit data, 4095
+     *            for 12 bits, etc.
+     * @param dest
+     *            The array to store the width * height values in, row by row
+     */
+    public void framePixels(int i, int maxValue, int[] dest) {
+        byte[] scene = getScene();
+        int sw = width + 2 * margin;
+        Point center = getBlushCenter();
+        int r2 = getBlushRadius() * getBlushRadius();
+        double darkening = blush[i] * blushDepth;
+        // The noise of every frame has its own seed, so that a frame can be
+        // generated without generating the frames before it.
+        Random random = new Random(seed * 1000003 + i);
+        double scale = maxValue / 255.0;
+
+        for (int y = 0; y < height; y++) {
+            int sy = y - dy[i];
+            int row = (sy + margin) * sw + margin - dx[i];
+            for (int x = 0; x < width; x++) {
+                int sx = x - dx[i];
+                double v = scene[row + x] & 0xFF;
+                int cx = sx - center.x, cy = sy - center.y;
+                if (cx * cx + cy * cy < r2)
+                    v -= darkening;
+                if (staticStructure)
+                    v = staticStructure(x, y, v);
+                v += random.nextGaussian() * noise;
+                dest[y * width + x] = (int) Math.max(0, Math.min(maxValue, Math.round(v * scale)));
+            }
+        }
+    }
+
+    /**
+     * Apply the static structures to a pixel of a frame.
+     */
+    private double staticStructure(int x, int y, double v) {
+        if (y < height / 10)
+            return 20 + v / 8;
+        if (x >= width * 5 / 8 && x < width * 3 / 4 && y >= height * 5 / 8
+                && y < height * 3 / 4)
+            return 240;
+        return v;
+    }
+
+    /**
+     * Create the run as an in-memory sequence of 8-bit frames.
+     */
+    public CAGSequence createSequence(SequenceIdentifier id) {
+        byte[] store = new byte[frames * width * height];
+        int[] values = new int[width * height];
+        for (int i = 0; i < frames; i++) {
+            framePixels(i, 255, values);
+            for (int p = 0; p < values.length; p++)
+                store[i * values.length + p] = (byte) values[p];
+        }
+        return new CAGSequence(CAGSequence.createFrames(ByteBuffer.wrap(store), frames, width,
+                height), id);
+    }
+
+    public CAGSequence createSequence() {
+        return createSequence(new SequenceIdentifier("Synthetic", String.valueOf(seed), width
+                + "x" + height + "x" + frames));
+    }
+
+    /**
+     * Create the header of a multi-frame X-ray angiography file with the run.
+     * 
+     * @param bits
+     *            The number of bits stored per pixel (8 to 16)
+     */
+    protected AttributeList createHeader(int bits, String transferSyntax) throws DicomException {
+        AttributeList list = new AttributeList();
+        String instance = "1.2.826.0.1.3680043.2.1143." + Math.abs(seed) + "." + width + "."
+                + height + "." + frames + "." + bits;
+        put(list, new UniqueIdentifierAttribute(TagFromName.SOPClassUID),
+                SOPClass.XRayAngiographicImageStorage);
+        put(list, new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID), instance);
+        put(list, new PersonNameAttribute(TagFromName.PatientName), "Synthetic^" + seed);
+        put(list, new TimeAttribute(TagFromName.ContentTime), "120000");
+        put(list, new CodeStringAttribute(TagFromName.PhotometricInterpretation), "MONOCHROME2");
+        put(list, new IntegerStringAttribute(TagFromName.NumberOfFrames), String.valueOf(frames));
+        putShort(list, TagFromName.SamplesPerPixel, 1);
+        putShort(list, TagFromName.Rows, height);
+        putShort(list, TagFromName.Columns, width);
+        putShort(list, TagFromName.BitsAllocated, bits > 8 ? 16 : 8);
+        putShort(list, TagFromName.BitsStored, bits);
+        putShort(list, TagFromName.HighBit, bits - 1);
+        putShort(list, TagFromName.PixelRepresentation, 0);
+        FileMetaInformation.addFileMetaInformation(list, transferSyntax, "QUBE");
+        return list;
+    }
+
+    private static void put(AttributeList list, Attribute attribute, String value)
+            throws DicomException {
+        attribute.addValue(value);
+        list.put(attribute);
+    }
+
+    private static void putShort(AttributeList list, AttributeTag tag, int value)
+            throws DicomException {
+        Attribute attribute = new UnsignedShortAttribute(tag);
+        attribute.addValue(value);
+        list.put(attribute);
+    }
+
+    /**
+     * Write the run to an uncompressed (explicit VR little endian) DICOM file.
+     * 
+     * @param file
+     *            The file to write
+     * @param bits
+     *            The number of bits stored per pixel: 8, or 9 to 16 for
+     *            16-bit pixels
+     * @throws IOException
+     *             When the file cannot be written
+     */
+    public void writeDicom(File file, int bits) throws IOException {
+        try {
+            AttributeList list = createHeader(bits, TransferSyntax.ExplicitVRLittleEndian);
+            int[] values = new int[width * height];
+            int maxValue = (1 << bits) - 1;
+            if (bits <= 8) {
+                byte[] pixels = new byte[frames * values.length];
+                for (int i = 0; i < frames; i++) {
+                    framePixels(i, maxValue, values);
+                    for (int p = 0; p < values.length; p++)
+                        pixels[i * values.length + p] = (byte) values[p];
+                }
+                OtherByteAttribute pixelData = new OtherByteAttribute(TagFromName.PixelData);
+                pixelData.setValues(pixels);
+                list.put(pixelData);
+            } else {
+                short[] pixels = new short[frames * values.length];
+                for (int i = 0; i < frames; i++) {
+                    framePixels(i, maxValue, values);
+                    for (int p = 0; p < values.length; p++)
+                        pixels[i * values.length + p] = (short) values[p];
+                }
+                OtherWordAttribute pixelData = new OtherWordAttribute(TagFromName.PixelData);
+                pixelData.setValues(pixels);
+                list.put(pixelData);
+            }
+            list.write(file, TransferSyntax.ExplicitVRLittleEndian, true, true);
+        } catch (DicomException de) {
+            throw new IOException(de);
+        }
+    }
+
+    /**
+     * Write the run to a DICOM file with every frame compressed as lossless
+     * JPEG (transfer syntax 1.2.840.10008.1.2.4.70), like the runs the
+     * angiography systems export. The pixel data is encapsulated with a basic
+     * offset table, so the offset of every frame is known.
+     * 
+     * @param file
+     *            The file to write
+     * @param bits
+     *            The number of bits stored per pixel (8 to 16)
+     * @throws IOException
+     *             When the file cannot be written
+     */
+    public void writeJpegLosslessDicom(File file, int bits) throws IOException {
+        byte[][] compressed = new byte[frames][];
+        int[] values = new int[width * height];
+        for (int i = 0; i < frames; i++) {
+            framePixels(i, (1 << bits) - 1, values);
+            compressed[i] = LosslessJpegEncoder.encode(values, width, height, bits);
+        }
+
+        // pixelmed writes the header, the encapsulated pixel data is appended
+        // by hand. Writing the list closes the stream, so it is written to
+        // memory first.
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try {
+            createHeader(bits, TransferSyntax.JPEGLosslessSV1).write(header,
+                    TransferSyntax.JPEGLosslessSV1, true, true);
+        } catch (DicomException de) {
+            throw new IOException(de);
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            header.writeTo(out);
+            writeTag(out, 0x7FE0, 0x0010);
+            out.write(new byte[] { 'O', 'B', 0, 0 });
+            writeInt(out, 0xFFFFFFFF); // undefined length
+
+            writeTag(out, 0xFFFE, 0xE000);
+            writeInt(out, 4 * frames);
+            int offset = 0;
+            for (byte[] frame : compressed) {
+                writeInt(out, offset);
+                offset += 8 + (frame.length + 1) / 2 * 2;
+            }
+            for (byte[] frame : compressed) {
+                writeTag(out, 0xFFFE, 0xE000);
+                writeInt(out, (frame.length + 1) / 2 * 2);
+                out.write(frame);
+                // Items have an even length.
+                if (frame.length % 2 != 0)
+                    out.write(0);
+            }
+            writeTag(out, 0xFFFE, 0xE0DD);
+            writeInt(out, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeTag(OutputStream out, int group, int element) throws IOException {
+        out.write(group & 0xFF);
+        out.write(group >> 8);
+        out.write(element & 0xFF);
+        out.write(element >> 8);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        for (int i = 0; i < 4; i++)
+            out.write(value >> (8 * i));
+    }
+}
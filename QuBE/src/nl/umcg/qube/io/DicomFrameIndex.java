@@ -0,0 +1,335 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+/**
+ * DicomFrameIndex holds the attributes of a multi-frame DICOM file, together
+ * with the position in the file of every frame. This allows decoding a single
+ * frame without reading the frames before it. The pixel data is either
+ * encapsulated (JPEG lossless), with every frame in its own item, or native:
+ * the uncompressed frames one after another.
+ * 
+ * @author mathijs
+ */
+public class DicomFrameIndex {
+    private static final String READER_WANTED = "jpeg-lossless";
+
+    /** The largest width or height of the frames in a CAGSequence */
+    public static final int MAX_SIZE = 512;
+
+    protected final File file;
+    protected final AttributeList attributes;
+    protected final TransferSyntax transferSyntax;
+    /** The positions of the items, or of the frames for native pixel data */
+    protected final long[] itemPositions;
+
+    protected DicomFrameIndex(File file, AttributeList attributes,
+            TransferSyntax transferSyntax, long[] itemPositions) {
+        this.file = file;
+        this.attributes = attributes;
+        this.transferSyntax = transferSyntax;
+        this.itemPositions = itemPositions;
+    }
+
+    /**
+     * Read the attributes and the frame offset table of a file. The pixel data
+     * itself is not read.
+     * 
+     * @param file
+     *            The DICOM file
+     * @return The index of the file
+     * @throws IOException
+     *             When the file cannot be read or has no pixel data
+     */
+    public static DicomFrameIndex read(File file) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        DicomInputStream in = new DicomInputStream(counter);
+        try {
+            AttributeList al = new AttributeList();
+            al.read(in, TagFromName.PixelData);
+            if (al.get(TagFromName.Rows) == null)
+                throw new IOException("No image in " + file);
+            TransferSyntax ts = in.getTransferSyntaxInUse();
+
+            int frames = Attribute.getSingleIntegerValueOrDefault(al, TagFromName.NumberOfFrames,
+                    1);
+            // Rest of the pixel data element header (VR and length)
+            if (ts.isExplicitVR())
+                in.readSigned32();
+            long pixelDataLength = in.readUnsigned32();
+
+            if (ts.isNotEncapsulated()) {
+                long start = counter.getPosition();
+                DicomFrameIndex index = new DicomFrameIndex(file, al, ts, new long[frames]);
+                for (int i = 0; i < frames; i++)
+                    index.itemPositions[i] = start + (long) i * index.getFrameLength();
+                if (!ts.isDeflated() && !ts.isBzip2ed()
+                        && pixelDataLength < (long) frames * index.getFrameLength())
+                    throw new IOException("Pixel data too short in " + file);
+                return index;
+            }
+
+            // Basic offset table item
+            in.readUnsigned16();
+            in.readUnsigned16();
+            long length = in.readUnsigned32();
+            long[] offs = new long[frames];
+            if (length >= 4L * frames) {
+                for (int i = 0; i < frames; i++)
+                    offs[i] = in.readUnsigned32();
+                in.skipInsistently(length - 4L * frames);
+            } else {
+                in.skipInsistently(length);
+            }
+
+            long firstItem = counter.getPosition();
+            long[] positions = new long[frames];
+            if (length >= 4L * frames) {
+                for (int i = 0; i < frames; i++)
+                    positions[i] = firstItem + offs[i];
+            } else {
+                // No offset table, assume one fragment per frame and walk
+                // over the item headers.
+                long pos = firstItem;
+                for (int i = 0; i < frames; i++) {
+                    positions[i] = pos;
+                    in.readUnsigned16();
+                    in.readUnsigned16();
+                    long itemLength = in.readUnsigned32();
+                    if (i < frames - 1)
+                        in.skipInsistently(itemLength);
+                    pos += 8 + itemLength;
+                }
+            }
+            return new DicomFrameIndex(file, al, ts, positions);
+        } catch (DicomException de) {
+            throw new IOException(de);
+        } finally {
+            in.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public AttributeList getAttributes() {
+        return attributes;
+    }
+
+    public int getFrameCount() {
+        return itemPositions.length;
+    }
+
+    public TransferSyntax getTransferSyntax() {
+        return transferSyntax;
+    }
+
+    /**
+     * @return whether the frames are stored as separately compressed items
+     */
+    public boolean isEncapsulated() {
+        return transferSyntax.isEncapsulated();
+    }
+
+    /**
+     * @return whether the frames can be read from their position in the file:
+     *         encapsulated frames, or native grey frames of 8 or 16 bits that
+     *         are not compressed as a whole
+     */
+    public boolean isSeekable() {
+        if (isEncapsulated())
+            return true;
+        int bits = getBitsAllocated();
+        return !transferSyntax.isDeflated() && !transferSyntax.isBzip2ed()
+                && getSamplesPerPixel() == 1 && (bits == 8 || bits == 16);
+    }
+
+    public int getSamplesPerPixel() {
+        return Attribute.getSingleIntegerValueOrDefault(attributes, TagFromName.SamplesPerPixel, 1);
+    }
+
+    public int getBitsAllocated() {
+        return Attribute.getSingleIntegerValueOrDefault(attributes, TagFromName.BitsAllocated, 8);
+    }
+
+    /**
+     * @return the number of bytes of a native frame
+     */
+    public int getFrameLength() {
+        return getColumns() * getRows() * getSamplesPerPixel() * ((getBitsAllocated() + 7) / 8);
+    }
+
+    /**
+     * @return the width of the frames as stored in the file
+     */
+    public int getColumns() {
+        return Attribute.getSingleIntegerValueOrDefault(attributes, TagFromName.Columns, 512);
+    }
+
+    /**
+     * @return the height of the frames as stored in the file
+     */
+    public int getRows() {
+        return Attribute.getSingleIntegerValueOrDefault(attributes, TagFromName.Rows, 512);
+    }
+
+    /**
+     * @return the factor by which frames are downscaled so that they fit in
+     *         MAX_SIZE x MAX_SIZE
+     */
+    public int getDownscale() {
+        return Math.max(1, Math.max((getColumns() + MAX_SIZE - 1) / MAX_SIZE, (getRows()
+                + MAX_SIZE - 1)
+                / MAX_SIZE));
+    }
+
+    /**
+     * @return the divider that brings the stored values to 8 bits
+     */
+    public int getDivider() {
+        int bits = Attribute.getSingleIntegerValueOrDefault(attributes, TagFromName.BitsStored, 8);
+        return 1 << Math.max(0, bits - 8);
+    }
+
+    public String getPatientName() {
+        return Attribute.getSingleStringValueOrDefault(attributes, TagFromName.PatientName, "");
+    }
+
+    public String getContentTime() {
+        return Attribute.getSingleStringValueOrDefault(attributes, TagFromName.ContentTime, "");
+    }
+
+    /**
+     * @param index
+     *            The frame number
+     * @return The position in the file of the item holding the frame
+     */
+    public long getItemPosition(int index) {
+        return itemPositions[index];
+    }
+
+    /**
+     * Read the pixels of one frame of native pixel data. Only positional reads
+     * are done on the channel, so it can be shared by several threads.
+     * 
+     * @param channel
+     *            A channel of the file
+     * @param index
+     *            The frame number
+     * @param buffer
+     *            A buffer to reuse, or null
+     * @return A buffer holding the frame from position 0, in the byte order of
+     *         the file. It is the given buffer when that was large enough.
+     * @throws IOException
+     */
+    public ByteBuffer readNativeFrame(FileChannel channel, int index, ByteBuffer buffer)
+            throws IOException {
+        int length = getFrameLength();
+        if (buffer == null || buffer.capacity() < length)
+            buffer = ByteBuffer.allocate(length);
+        buffer.clear();
+        buffer.limit(length);
+        readFully(channel, buffer, itemPositions[index]);
+        buffer.flip();
+        buffer.order(transferSyntax.isBigEndian() ? ByteOrder.BIG_ENDIAN
+                : ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Read the compressed data of one frame. Only positional reads are done on
+     * the channel, so it can be shared by several threads.
+     * 
+     * @param channel
+     *            A channel of the file
+     * @param index
+     *            The frame number
+     * @return The compressed frame
+     * @throws IOException
+     */
+    public byte[] readFrameData(FileChannel channel, int index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, itemPositions[index]);
+        long length = header.getInt(4) & 0xFFFFFFFFL;
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        readFully(channel, data, itemPositions[index] + 8);
+        return data.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+            position += n;
+        }
+    }
+
+    /**
+     * @return a new reader for the compressed frames
+     */
+    public static ImageReader createReader() {
+        return ImageIO.getImageReadersByFormatName(READER_WANTED).next();
+    }
+
+    /**
+     * Decode a frame that was read with readFrameData.
+     * 
+     * @param reader
+     *            A reader from createReader(), which must not be used by other
+     *            threads at the same time
+     * @param data
+     *            The compressed frame
+     * @return The decoded image
+     * @throws IOException
+     */
+    public static BufferedImage decode(ImageReader reader, byte[] data) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        try {
+            reader.setInput(iis, true, true);
+            return reader.read(0);
+        } finally {
+            iis.close();
+        }
+    }
+}
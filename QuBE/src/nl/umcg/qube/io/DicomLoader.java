@@ -19,15 +19,32 @@
 package nl.umcg.qube.io;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
 
 import nl.umcg.qube.io.AbstractSequenceProvider.SequenceLoadListener;
 import nl.umcg.qube.model.CAGFrame;
@@ -47,10 +64,80 @@ import com.pixelmed.display.SourceImage;
  */
 public class DicomLoader {
 
+    protected static SequenceCache sequenceCache = null;
+
+    protected static int decodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Tables for copyRaster, by the number of bits and the divider */
+    private static final Map<Integer, byte[]> lookupTables = new ConcurrentHashMap<Integer,
+            byte[]>();
+
+    /**
+     * Set the cache that decoded sequences are stored in and loaded from. With
+     * a null cache (the default), every file is decoded when it is loaded.
+     * 
+     * @param cache
+     *            The cache to use, or null
+     */
+    public static void setSequenceCache(SequenceCache cache) {
+        sequenceCache = cache;
+    }
+
+    public static SequenceCache getSequenceCache() {
+        return sequenceCache;
+    }
+
+    /**
+     * Look a file up in the sequence cache, if there is one.
+     */
+    protected static CAGSequence loadFromCache(File file, SequenceIdentifier id) {
+        SequenceCache cache = sequenceCache;
+        if (cache == null)
+            return null;
+        try {
+            return cache.load(file, id);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Store a decoded sequence in the sequence cache, if there is one. Failing
+     * to do so is not fatal, the sequence is simply decoded again next time.
+     */
+    protected static void storeInCache(File file, CAGSequence sequence) {
+        SequenceCache cache = sequenceCache;
+        if (cache == null)
+            return;
+        try {
+            cache.store(file, sequence);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Set the number of threads that decode the frames of a file in
+     * {@link #loadFromFileAsync(File, SequenceIdentifier, SequenceLoadListener)}
+     * . The default is the number of processors.
+     * 
+     * @param threads
+     *            The number of decoding threads
+     */
+    public static void setDecodeThreads(int threads) {
+        decodeThreads = Math.max(1, threads);
+    }
+
     /**
      * Load a DICOM sequence from a file asynchronously. The provided listener
      * will be notified when the loading is done.
      * 
+     * The frames are decoded in parallel: the offset of every frame is known
+     * from the offset table, so each decoding thread reads the frames it
+     * decodes from the file itself and has its own ImageReader. The listener
+     * is still updated in frame order, from the loading thread.
+     * 
      * @param file
      *            The file to load the sequence from.
      * @param identifier
@@ -62,99 +149,492 @@ public class DicomLoader {
             final SequenceLoadListener listen) {
         new Thread(new Runnable() {
             public void run() {
-                DicomInputStream in = null;
                 try {
-                    in = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
-                    AttributeList al = new AttributeList();
-
-                    al.read(in, TagFromName.PixelData);
-
-                    int frames = ((Attribute) al.get(TagFromName.NumberOfFrames))
-                            .getSingleIntegerValueOrDefault(2);
-                    in.readSigned32();
-                    in.readSigned32();
-                    String readerWanted = "jpeg-lossless";
-
-                    ImageReader reader = (ImageReader) (ImageIO
-                            .getImageReadersByFormatName(readerWanted).next());
-                    in.readUnsigned16();
-                    in.readUnsigned16();
-                    in.readUnsigned32(); // length
-                    long[] offs = new long[frames];
-
-                    for (int i = 0; i < frames; i++)
-                        offs[i] = in.readUnsigned32();
-                    in.skipInsistently(8);
-                    ImageInputStream iiois = ImageIO.createImageInputStream(in);
-
-                    CAGFrame[] cagFrames = new CAGFrame[frames];
-
-                    for (int i = 0; i < frames; i++) {
-                        if (iiois.getStreamPosition() != offs[i])
-                            iiois.skipBytes(offs[i] - iiois.getStreamPosition());
-                        reader.setInput(iiois);
-                        BufferedImage image = reader.read(0);
-                        Raster raster = image.getRaster();
-                        byte[][] bytes = new byte[raster.getHeight()][raster.getWidth()];
-                        for (int x = 0; x < raster.getWidth(); x++)
-                            for (int y = 0; y < raster.getHeight(); y++)
-                                bytes[y][x] = (byte) raster.getSample(x, y, 0);
-                        cagFrames[i] = new CAGFrame(bytes);
-                        if (!listen.update(i, image))
-                            return;
+                    DicomFrameIndex index = DicomFrameIndex.read(file);
+                    CAGSequence mapped = mapNative(index, identifier);
+                    if (mapped != null) {
+                        if (update(mapped, listen))
+                            listen.finished(mapped);
+                        return;
+                    }
+
+                    CAGSequence cached = loadFromCache(file, identifier);
+                    if (cached != null) {
+                        listen.finished(cached);
+                        return;
                     }
-                    CAGSequence sequence = new CAGSequence(cagFrames, identifier);
-                    sequence.setPatientName(al.get(TagFromName.PatientName)
-                            .getSingleStringValueOrDefault(""));
-                    sequence.setStudyID(al.get(TagFromName.ContentTime) == null ? "" : al.get(
-                            TagFromName.ContentTime).getSingleStringValueOrDefault(""));
 
+                    CAGSequence sequence;
+                    if (index.isEncapsulated()) {
+                        sequence = decodeAll(index, identifier, listen);
+                        if (sequence == null)
+                            return;
+                    } else {
+                        // Native data that could not be mapped: read it as
+                        // loadFromFile does and report the frames afterwards.
+                        sequence = index.isSeekable() ? loadFrames(index, identifier)
+                                : loadWithSourceImage(file, identifier);
+                        if (!update(sequence, listen))
+                            return;
+                    }
+                    storeInCache(file, sequence);
                     listen.finished(sequence);
-                } catch (Exception e) {
-                    listen.error(e);
-                } finally {
-                    if (in != null)
-                        try {
-                            in.close();
-                        } catch (Exception e) {
-                        }
+                } catch (Throwable t) {
+                    listen.error(t);
                 }
             }
         }).start();
     }
 
+    /**
+     * Report all frames of a loaded sequence to a listener.
+     * 
+     * @return false when the listener stopped the loading
+     */
+    private static boolean update(CAGSequence sequence, SequenceLoadListener listen) {
+        for (int i = 0; i < sequence.frameCount(); i++)
+            if (!listen.update(i, toImage(sequence.getFrame(i))))
+                return false;
+        return true;
+    }
+
+    /**
+     * Decode all frames of a file on a pool of decodeThreads threads.
+     * 
+     * @return The sequence, or null when the listener stopped the loading
+     */
+    protected static CAGSequence decodeAll(final DicomFrameIndex index,
+            SequenceIdentifier identifier, SequenceLoadListener listen) throws Exception {
+        final int frames = index.getFrameCount();
+        final int downscale = index.getDownscale(), divider = index.getDivider();
+        final int width = index.getColumns() / downscale, height = index.getRows() / downscale;
+        // All frames are stored in one block.
+        final byte[] store = new byte[frames * width * height];
+
+        // Every decoding thread has its own reader, they are not thread safe.
+        final List<ImageReader> readers = new ArrayList<ImageReader>();
+        final ThreadLocal<ImageReader> reader = new ThreadLocal<ImageReader>() {
+            @Override
+            protected ImageReader initialValue() {
+                ImageReader r = DicomFrameIndex.createReader();
+                synchronized (readers) {
+                    readers.add(r);
+                }
+                return r;
+            }
+        };
+
+        int threads = Math.min(decodeThreads, frames);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Frame decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Only positional reads are done, so the channel can be shared.
+        RandomAccessFile raf = new RandomAccessFile(index.getFile(), "r");
+        final FileChannel channel = raf.getChannel();
+        try {
+            // Decoding runs at most a few frames ahead of the listener, so
+            // that only those decoded images are kept in memory.
+            int window = 2 * threads;
+            List<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>();
+            for (int i = 0; i < frames; i++) {
+                while (decoded.size() < Math.min(frames, i + window)) {
+                    final int frame = decoded.size();
+                    decoded.add(pool.submit(new Callable<BufferedImage>() {
+                        public BufferedImage call() throws IOException {
+                            BufferedImage image = DicomFrameIndex.decode(reader.get(), index
+                                    .readFrameData(channel, frame));
+                            copyRaster(image.getRaster(), downscale, divider, store, frame
+                                    * width * height, width, height);
+                            return image;
+                        }
+                    }));
+                }
+                BufferedImage image;
+                try {
+                    image = decoded.get(i).get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof Exception)
+                        throw (Exception) ee.getCause();
+                    throw ee;
+                }
+                decoded.set(i, null);
+                if (!listen.update(i, image))
+                    return null;
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            raf.close();
+            synchronized (readers) {
+                for (ImageReader r : readers)
+                    r.dispose();
+            }
+        }
+
+        CAGSequence sequence = new CAGSequence(CAGSequence.createFrames(ByteBuffer.wrap(store),
+                frames, width, height), identifier);
+        sequence.setPatientName(index.getPatientName());
+        sequence.setStudyID(index.getContentTime());
+        return sequence;
+    }
+
+    /**
+     * Copy a decoded frame into a frame store, taking every downscale'th pixel
+     * and dividing the values by divider to get 8-bit values.
+     * 
+     * The usual grey rasters of unsigned bytes or shorts are read directly from
+     * their backing array, row by row, and the values are converted through a
+     * lookup table. Other rasters are read through getSamples.
+     * 
+     * @param raster
+     *            The decoded frame
+     * @param downscale
+     *            The downscale factor
+     * @param divider
+     *            The divider for the pixel values
+     * @param dest
+     *            The frame store
+     * @param offset
+     *            The index of pixel (0, 0) in dest
+     * @param width
+     *            The width of the frame in dest
+     * @param height
+     *            The height of the frame in dest
+     */
+    protected static void copyRaster(Raster raster, int downscale, int divider, byte[] dest,
+            int offset, int width, int height) {
+        DataBuffer buffer = raster.getDataBuffer();
+        if (raster.getSampleModel() instanceof ComponentSampleModel
+                && (buffer instanceof DataBufferByte || buffer instanceof DataBufferUShort)) {
+            copyComponents(raster, downscale, divider, dest, offset, width, height);
+            return;
+        }
+
+        // Any other layout: read a row of samples at a time.
+        int[] row = new int[(width - 1) * downscale + 1];
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y * downscale, row.length, 1,
+                    0, row);
+            int d = offset + y * width;
+            for (int x = 0; x < width; x++)
+                dest[d + x] = (byte) (row[x * downscale] / divider);
+        }
+    }
+
+    /**
+     * Copy the first band of a raster of unsigned bytes or shorts, reading the
+     * backing array directly. The values are mapped through a table.
+     */
+    private static void copyComponents(Raster raster, int downscale, int divider, byte[] dest,
+            int offset, int width, int height) {
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int bank = model.getBankIndices()[0];
+        int pixelStride = model.getPixelStride(), scanlineStride = model.getScanlineStride();
+        // The index of the top left sample of the raster in the bank
+        int origin = buffer.getOffsets()[bank] + model.getBandOffsets()[0]
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+        int step = downscale * pixelStride;
+
+        if (buffer instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte) buffer).getData(bank);
+            byte[] lut = lookupTable(8, divider);
+            for (int y = 0; y < height; y++) {
+                int s = origin + y * downscale * scanlineStride, d = offset + y * width;
+                for (int x = 0; x < width; x++, s += step)
+                    dest[d + x] = lut[data[s] & 0xFF];
+            }
+        } else {
+            short[] data = ((DataBufferUShort) buffer).getData(bank);
+            byte[] lut = lookupTable(16, divider);
+            for (int y = 0; y < height; y++) {
+                int s = origin + y * downscale * scanlineStride, d = offset + y * width;
+                for (int x = 0; x < width; x++, s += step)
+                    dest[d + x] = lut[data[s] & 0xFFFF];
+            }
+        }
+    }
+
+    /**
+     * @return A table that maps every unsigned value of the given number of
+     *         bits to (byte) (value / divider)
+     */
+    private static byte[] lookupTable(int bits, int divider) {
+        Integer key = divider * 32 + bits;
+        byte[] lut = lookupTables.get(key);
+        if (lut == null) {
+            lut = new byte[1 << bits];
+            for (int v = 0; v < lut.length; v++)
+                lut[v] = (byte) (v / divider);
+            lookupTables.put(key, lut);
+        }
+        return lut;
+    }
+
+    /**
+     * Open a DICOM file without decoding its frames. Frames are decoded when
+     * they are first requested, see {@link LazyDicomSequence}. Only files with
+     * encapsulated pixel data are opened lazily, uncompressed files are loaded
+     * as {@link #loadFromFile(File, SequenceIdentifier)} does.
+     * 
+     * @param file
+     *            The file to load the sequence from.
+     * @param id
+     *            The SequenceIdentifier of this file.
+     * @return The sequence
+     * @throws IOException
+     *             When the header of the file cannot be read
+     */
+    public static CAGSequence loadLazily(File file, SequenceIdentifier id) throws IOException {
+        DicomFrameIndex index = DicomFrameIndex.read(file);
+        CAGSequence mapped = mapNative(index, id);
+        if (mapped != null)
+            return mapped;
+        if (!index.isEncapsulated())
+            return loadIndexed(file, index, id);
+        LazyDicomSequence sequence = new LazyDicomSequence(index, id);
+        sequence.setPatientName(sequence.getIndex().getPatientName());
+        sequence.setStudyID(sequence.getIndex().getContentTime());
+        return sequence;
+    }
+
+    /**
+     * Load a DICOM sequence from a file. The frames are read one at a time and
+     * converted straight into the frame store of the sequence, so apart from
+     * the sequence itself only about one frame is held in memory.
+     * 
+     * Uncompressed files are memory mapped. When their frames are 8 bits and
+     * need no downscaling, the frames view the mapped file directly and opening
+     * the file costs little more than reading its header. Other uncompressed
+     * frames are converted from the mapping in one pass. Neither is stored in
+     * the sequence cache, as reading the cache would be no faster.
+     * 
+     * @param file
+     *            The file to load the sequence from.
+     * @param id
+     *            The SequenceIdentifier of this file.
+     * @return The sequence
+     * @throws IOException
+     *             When the file cannot be read or decoded
+     */
     public static CAGSequence loadFromFile(File file, SequenceIdentifier id) throws IOException {
+        DicomFrameIndex index = DicomFrameIndex.read(file);
+        CAGSequence mapped = mapNative(index, id);
+        if (mapped != null)
+            return mapped;
+        return loadIndexed(file, index, id);
+    }
+
+    /**
+     * Load a sequence that cannot be memory mapped, from the sequence cache
+     * when possible.
+     */
+    private static CAGSequence loadIndexed(File file, DicomFrameIndex index, SequenceIdentifier id)
+            throws IOException {
+        CAGSequence cached = loadFromCache(file, id);
+        if (cached != null)
+            return cached;
+
+        CAGSequence sequence = index.isSeekable() ? loadFrames(index, id) : loadWithSourceImage(
+                file, id);
+        storeInCache(file, sequence);
+        return sequence;
+    }
+
+    /**
+     * Open a file with native (uncompressed) pixel data by memory mapping its
+     * pixel data.
+     * 
+     * @return The sequence, or null when the file has encapsulated pixel data,
+     *         cannot be read frame by frame or is too large to map
+     */
+    protected static CAGSequence mapNative(DicomFrameIndex index, SequenceIdentifier id)
+            throws IOException {
+        int count = index.getFrameCount(), frameLength = index.getFrameLength();
+        if (index.isEncapsulated() || !index.isSeekable()
+                || (long) count * frameLength > Integer.MAX_VALUE)
+            return null;
+        int downscale = index.getDownscale(), divider = index.getDivider();
+        int width = index.getColumns() / downscale, height = index.getRows() / downscale;
+
+        RandomAccessFile raf = new RandomAccessFile(index.getFile(), "r");
+        MappedByteBuffer pixels;
+        try {
+            // The mapping stays valid after the file is closed.
+            pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    index.getItemPosition(0), (long) count * frameLength);
+        } finally {
+            raf.close();
+        }
+
+        CAGFrame[] frames;
+        if (index.getBitsAllocated() == 8 && downscale == 1 && divider == 1) {
+            frames = CAGSequence.createFrames(pixels, count, width, height);
+        } else {
+            byte[] store = new byte[count * width * height];
+            for (int i = 0; i < count; i++) {
+                ByteBuffer frame = pixels.duplicate();
+                frame.position(i * frameLength);
+                copyNative(frame.slice().order(index.getTransferSyntax().isBigEndian()
+                        ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN), index
+                        .getBitsAllocated(), index.getColumns(), downscale, divider, store, i
+                        * width * height, width, height);
+            }
+            frames = CAGSequence.createFrames(ByteBuffer.wrap(store), count, width, height);
+        }
+        CAGSequence sequence = new CAGSequence(frames, id);
+        sequence.setPatientName(index.getPatientName());
+        sequence.setStudyID(index.getContentTime());
+        return sequence;
+    }
+
+    /**
+     * Make an image of a frame, for the listeners of loadFromFileAsync.
+     */
+    private static BufferedImage toImage(CAGFrame frame) {
+        BufferedImage image = new BufferedImage(frame.getWidth(), frame.getHeight(),
+                BufferedImage.TYPE_BYTE_GRAY);
+        byte[] row = new byte[frame.getWidth()];
+        for (int y = 0; y < frame.getHeight(); y++) {
+            frame.getRow(y, row);
+            image.getRaster().setDataElements(0, y, frame.getWidth(), 1, row);
+        }
+        return image;
+    }
+
+    /**
+     * Read the frames of a file one by one through its index.
+     */
+    protected static CAGSequence loadFrames(DicomFrameIndex index, SequenceIdentifier id)
+            throws IOException {
+        int count = index.getFrameCount();
+        int downscale = index.getDownscale(), divider = index.getDivider();
+        int width = index.getColumns() / downscale, height = index.getRows() / downscale;
+        byte[] store = new byte[count * width * height];
+
+        RandomAccessFile raf = new RandomAccessFile(index.getFile(), "r");
+        ImageReader reader = null;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (index.isEncapsulated()) {
+                reader = DicomFrameIndex.createReader();
+                for (int i = 0; i < count; i++)
+                    copyRaster(DicomFrameIndex.decode(reader, index.readFrameData(channel, i))
+                            .getRaster(), downscale, divider, store, i * width * height, width,
+                            height);
+            } else {
+                ByteBuffer frame = null;
+                for (int i = 0; i < count; i++) {
+                    frame = index.readNativeFrame(channel, i, frame);
+                    copyNative(frame, index.getBitsAllocated(), index.getColumns(), downscale,
+                            divider, store, i * width * height, width, height);
+                }
+            }
+        } finally {
+            if (reader != null)
+                reader.dispose();
+            raf.close();
+        }
+
+        CAGSequence sequence = new CAGSequence(CAGSequence.createFrames(ByteBuffer.wrap(store),
+                count, width, height), id);
+        sequence.setPatientName(index.getPatientName());
+        sequence.setStudyID(index.getContentTime());
+        return sequence;
+    }
+
+    /**
+     * Copy a native frame into a frame store, like
+     * {@link #copyRaster(Raster, int, int, byte[], int, int, int)}.
+     * 
+     * @param frame
+     *            The frame, from position 0 and in the byte order of the file
+     * @param bitsAllocated
+     *            8 or 16
+     * @param columns
+     *            The width of the frame in the file
+     * @param downscale
+     *            The downscale factor
+     * @param divider
+     *            The divider for the pixel values
+     * @param dest
+     *            The frame store
+     * @param offset
+     *            The index of pixel (0, 0) in dest
+     * @param width
+     *            The width of the frame in dest
+     * @param height
+     *            The height of the frame in dest
+     */
+    protected static void copyNative(ByteBuffer frame, int bitsAllocated, int columns,
+            int downscale, int divider, byte[] dest, int offset, int width, int height) {
+        if (bitsAllocated == 16 && downscale == 1 && Integer.bitCount(divider) == 1) {
+            // The usual 16-bit frame that is not downscaled: copy a row at a
+            // time and shift instead of looking up, which the JIT can
+            // vectorize.
+            int shift = Integer.numberOfTrailingZeros(divider);
+            ShortBuffer shorts = frame.asShortBuffer();
+            short[] row = new short[width];
+            for (int y = 0; y < height; y++) {
+                shorts.position(y * columns);
+                shorts.get(row);
+                int d = offset + y * width;
+                for (int x = 0; x < width; x++)
+                    dest[d + x] = (byte) ((row[x] & 0xFFFF) >>> shift);
+            }
+            return;
+        }
+
+        byte[] lut = lookupTable(bitsAllocated, divider);
+        for (int y = 0; y < height; y++) {
+            int s = y * downscale * columns, d = offset + y * width;
+            if (bitsAllocated == 8) {
+                for (int x = 0; x < width; x++, s += downscale)
+                    dest[d + x] = lut[frame.get(s) & 0xFF];
+            } else {
+                for (int x = 0; x < width; x++, s += downscale)
+                    dest[d + x] = lut[frame.getShort(2 * s) & 0xFFFF];
+            }
+        }
+    }
+
+    /**
+     * Load a file through pixelmed's SourceImage, which handles the transfer
+     * syntaxes whose frames cannot be read one by one. The whole file is read
+     * into memory.
+     */
+    protected static CAGSequence loadWithSourceImage(File file, SequenceIdentifier id)
+            throws IOException {
         try {
             DicomInputStream in = new DicomInputStream(file);
             AttributeList al = new AttributeList();
-            al.read(in);
+            try {
+                al.read(in);
+            } finally {
+                in.close();
+            }
             SourceImage image = new SourceImage(al);
             int count = image.getNumberOfBufferedImages();
-            int picwidth = image.getHeight(), picheight = image.getHeight();
-            int downscale = Math.max(1, Math.max((picwidth + 511) / 512, (picheight + 511) / 512));
-            int divider = 1;
+            int picwidth = image.getWidth(), picheight = image.getHeight();
+            int downscale = Math.max(1, Math.max((picwidth + DicomFrameIndex.MAX_SIZE - 1)
+                    / DicomFrameIndex.MAX_SIZE, (picheight + DicomFrameIndex.MAX_SIZE - 1)
+                    / DicomFrameIndex.MAX_SIZE));
             int bits = al.get(TagFromName.BitsStored).getSingleIntegerValueOrDefault(8);
-
-            divider = (1 << (bits - 8));
+            int divider = 1 << Math.max(0, bits - 8);
             picwidth = picwidth / downscale;
             picheight = picheight / downscale;
-            in.close();
-            CAGFrame[] frames = new CAGFrame[count];
+            byte[] store = new byte[count * picwidth * picheight];
 
-            for (int i = 0; i < count; i++) {
-                byte[][] values = new byte[picheight][picwidth];
-
-                // int max = 0;
-                Raster cur = image.getBufferedImage(i).getRaster();
-                for (int x = 0; x < picwidth; x++)
-                    for (int y = 0; y < picheight; y++) {
-                        // max = Math.max(cur.getSample(x*downscale,
-                        // y*downscale, 0), max);
-                        values[y][x] = (byte) (cur.getSample(x * downscale, y * downscale, 0) / divider);
-                    }
-                // System.out.println(max);
-                frames[i] = new CAGFrame(values);
-            }
+            for (int i = 0; i < count; i++)
+                copyRaster(image.getBufferedImage(i).getRaster(), downscale, divider, store, i
+                        * picwidth * picheight, picwidth, picheight);
+            CAGFrame[] frames = CAGSequence.createFrames(ByteBuffer.wrap(store), count, picwidth,
+                    picheight);
             CAGSequence sequence = new CAGSequence(frames, id);
             Attribute patient = al.get(TagFromName.PatientName);
             Attribute contentTime = al.get(TagFromName.ContentTime);
@@ -0,0 +1,235 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageReader;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
+import nl.umcg.qube.model.SequenceIdentifier;
+
+/**
+ * A CAGSequence that decodes its frames on demand. Opening the sequence only
+ * reads the DICOM header and frame offset table; getFrame(i) decodes frame i
+ * from its known position in the file the first time it is requested.
+ * 
+ * Decoded frames are kept by a {@link FrameMemoryManager}, under the
+ * identifier of the sequence. After every request, the next few frames in the
+ * direction in which the sequence is being traversed are decoded in the
+ * background, so that playing the sequence does not have to wait for the
+ * decoder.
+ * 
+ * @author mathijs
+ */
+public class LazyDicomSequence extends CAGSequence {
+    /** Number of frames to decode ahead of the last requested frame */
+    public static final int READ_AHEAD = 4;
+
+    private static final ExecutorService readAheadService = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "QuBE frame read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    protected final DicomFrameIndex index;
+    protected final int width, height, downscale, divider;
+
+    protected final FrameMemoryManager memory;
+    protected final HashMap<Integer, FutureTask<CAGFrame>> pending = new HashMap<Integer, FutureTask<CAGFrame>>();
+    protected int lastIndex = -1;
+
+    protected ImageReader reader;
+    protected RandomAccessFile raf;
+
+    public LazyDicomSequence(DicomFrameIndex index, SequenceIdentifier id) {
+        this(index, id, FrameMemoryManager.getInstance());
+    }
+
+    /**
+     * @param index
+     *            The index of the DICOM file
+     * @param id
+     *            The identifier of the sequence
+     * @param memory
+     *            The memory manager that keeps the decoded frames
+     */
+    public LazyDicomSequence(DicomFrameIndex index, SequenceIdentifier id,
+            FrameMemoryManager memory) {
+        super(id);
+        this.index = index;
+        this.memory = memory;
+        downscale = index.getDownscale();
+        divider = index.getDivider();
+        width = index.getColumns() / downscale;
+        height = index.getRows() / downscale;
+    }
+
+    public DicomFrameIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public int frameCount() {
+        return index.getFrameCount();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public CAGFrame getFrame(int i) {
+        try {
+            CAGFrame frame = (CAGFrame) memory.get(getID(), i);
+            if (frame == null)
+                frame = request(i).get();
+            readAhead(i);
+            return frame;
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while decoding frame " + i, ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("Could not decode frame " + i, ee.getCause());
+        }
+    }
+
+    /**
+     * Decode all frames. Note that the memory manager may not keep all of the
+     * returned frames.
+     */
+    @Override
+    public CAGFrame[] getFrames() {
+        CAGFrame[] frames = new CAGFrame[frameCount()];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = getFrame(i);
+        return frames;
+    }
+
+    /**
+     * Return the task decoding frame i. When no other thread is decoding the
+     * frame yet, a new task is made and run by the calling thread.
+     */
+    protected FutureTask<CAGFrame> request(final int i) {
+        FutureTask<CAGFrame> task;
+        synchronized (pending) {
+            task = pending.get(i);
+            if (task != null)
+                return task;
+            task = new FutureTask<CAGFrame>(new Callable<CAGFrame>() {
+                @Override
+                public CAGFrame call() throws Exception {
+                    try {
+                        CAGFrame frame = decode(i);
+                        memory.put(getID(), i, frame, (long) width * height);
+                        return frame;
+                    } finally {
+                        synchronized (pending) {
+                            pending.remove(i);
+                        }
+                    }
+                }
+            });
+            pending.put(i, task);
+        }
+        task.run();
+        return task;
+    }
+
+    /**
+     * Schedule decoding of the frames after i, in the direction in which the
+     * sequence is traversed. Playback wraps around from the last to the first
+     * frame, which counts as going forward.
+     */
+    protected void readAhead(final int i) {
+        int direction;
+        synchronized (pending) {
+            boolean wrapped = (lastIndex == frameCount() - 1 && i == 0);
+            direction = (i >= lastIndex || wrapped) ? 1 : -1;
+            lastIndex = i;
+        }
+        for (int k = 1; k <= READ_AHEAD; k++) {
+            final int next = i + k * direction;
+            if (next < 0 || next >= frameCount())
+                break;
+            if (memory.contains(getID(), next))
+                continue;
+            readAheadService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!memory.contains(getID(), next))
+                        request(next);
+                }
+            });
+        }
+    }
+    /**
+     * Decode a single frame from the file. Decoding is serialized, as the
+     * reader and file are shared.
+     */
+    protected synchronized CAGFrame decode(int i) throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(index.getFile(), "r");
+            reader = DicomFrameIndex.createReader();
+        }
+        FileChannel channel = raf.getChannel();
+        BufferedImage image = DicomFrameIndex.decode(reader, index.readFrameData(channel, i));
+        byte[] pixels = new byte[width * height];
+        DicomLoader.copyRaster(image.getRaster(), downscale, divider, pixels, 0, width, height);
+        return new CAGFrame(ByteBuffer.wrap(pixels), 0, width, height, width);
+    }
+
+    /**
+     * Close the underlying file and release the decoded frames. Frames that are
+     * requested afterwards reopen the file.
+     */
+    public synchronized void close() throws IOException {
+        memory.removeAll(getID());
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        if (reader != null) {
+            reader.dispose();
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.process.IMoveCalculator;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * MoveCorrectionStore keeps calculated MoveCorrections on disk, so that
+ * reopening a sequence does not require calculating the panning correction
+ * again. Entries are keyed by a hash of the decoded pixels of the sequence and
+ * the name and version of the calculator, so the same run is found again
+ * under any path, and a changed calculator does not use old results.
+ * 
+ * Every entry is a small file with a header, the offsets as 16-bit values and
+ * a CRC32 checksum. Entries are written to a temporary file that is renamed
+ * when it is complete, and entries that fail the checksum are ignored. This
+ * way several QuBE processes can share a store directory, even on a network
+ * drive where file locks cannot be relied on.
+ * 
+ * @author mathijs
+ */
+public class MoveCorrectionStore {
+    private static final int MAGIC = 0x51424d43; // "QBMC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".qmc";
+
+    protected final File directory;
+
+    /**
+     * A move calculator that first looks in a store, and stores what it
+     * calculates.
+     */
+    public static class StoringMoveCalculator implements IMoveCalculator {
+        private final IMoveCalculator calculator;
+        private final MoveCorrectionStore store;
+        private final String name;
+
+        /**
+         * @param calculator
+         *            The calculator to use when the store has no result
+         * @param store
+         *            The store
+         */
+        public StoringMoveCalculator(IMoveCalculator calculator, MoveCorrectionStore store) {
+            this.calculator = calculator;
+            this.store = store;
+            name = calculator.getClass().getName() + "/" + calculator.getVersion();
+        }
+
+        @Override
+        public String getVersion() {
+            return calculator.getVersion();
+        }
+
+        @Override
+        public MoveCorrection getMoveCorrection(CAGSequence sequence) {
+            String hash = contentHash(sequence);
+            MoveCorrection mc = null;
+            try {
+                mc = store.load(hash, name);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            if (mc != null && mc.dx.length == sequence.frameCount())
+                return mc;
+
+            mc = calculator.getMoveCorrection(sequence);
+            try {
+                store.store(hash, name, mc);
+            } catch (IOException ioe) {
+                // Not being able to store the result is not fatal.
+                ioe.printStackTrace();
+            }
+            return mc;
+        }
+    }
+
+    /**
+     * Create a store in a directory. The directory is created when it does not
+     * exist yet.
+     * 
+     * @param directory
+     *            The directory to keep the entries in
+     */
+    public MoveCorrectionStore(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /**
+     * Hash the size and decoded pixels of all frames of a sequence.
+     * 
+     * @param sequence
+     *            The sequence
+     * @return The SHA-1 hash as a hexadecimal string
+     */
+    public static String contentHash(CAGSequence sequence) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+        int width = sequence.getWidth(), height = sequence.getHeight();
+        digest.update((sequence.frameCount() + "x" + width + "x" + height).getBytes());
+        byte[] row = new byte[width];
+        for (int i = 0; i < sequence.frameCount(); i++) {
+            CAGFrame frame = sequence.getFrame(i);
+            for (int y = 0; y < height; y++) {
+                frame.getRow(y, row);
+                digest.update(row);
+            }
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    protected File entryFile(String contentHash, String calculator) {
+        return new File(directory, DigestUtils.md5Hex(calculator + "|" + contentHash) + SUFFIX);
+    }
+
+    /**
+     * Load a stored move correction.
+     * 
+     * @param contentHash
+     *            The hash of the sequence, see {@link #contentHash(CAGSequence)}
+     * @param calculator
+     *            The name and version of the calculator
+     * @return The stored move correction, or null when there is no valid entry
+     * @throws IOException
+     *             When an existing entry cannot be read
+     */
+    public MoveCorrection load(String contentHash, String calculator) throws IOException {
+        File entry = entryFile(contentHash, calculator);
+        if (!entry.exists())
+            return null;
+
+        byte[] bytes = new byte[(int) entry.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(entry));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        if (bytes.length < 8)
+            return null;
+
+        // An entry that is damaged, for instance by a network drive that lost
+        // part of it, fails the checksum.
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (ByteBuffer.wrap(bytes).getLong(bytes.length - 8) != crc.getValue())
+            return null;
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION)
+            return null;
+        if (!data.readUTF().equals(calculator) || !data.readUTF().equals(contentHash))
+            return null;
+        int count = data.readInt();
+        if (count < 0 || count > data.available() / 4)
+            return null;
+        int[] dx = new int[count], dy = new int[count];
+        for (int i = 0; i < count; i++) {
+            dx[i] = data.readShort();
+            dy[i] = data.readShort();
+        }
+        return new MoveCorrection(dx, dy);
+    }
+
+    /**
+     * Store a move correction. The entry appears at once when it is complete,
+     * so a concurrent load in this or another process never sees part of it.
+     * 
+     * @param contentHash
+     *            The hash of the sequence, see {@link #contentHash(CAGSequence)}
+     * @param calculator
+     *            The name and version of the calculator
+     * @param mc
+     *            The move correction to store
+     * @throws IOException
+     *             When the entry could not be written
+     */
+    public void store(String contentHash, String calculator, MoveCorrection mc)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeUTF(calculator);
+        data.writeUTF(contentHash);
+        data.writeInt(mc.dx.length);
+        for (int i = 0; i < mc.dx.length; i++) {
+            data.writeShort(mc.dx[i]);
+            data.writeShort(mc.dy[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        data.writeLong(crc.getValue());
+        data.close();
+
+        File entry = entryFile(contentHash, calculator);
+        File temp = File.createTempFile("store", ".tmp", directory);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(entry)) {
+            // Renaming onto an existing file fails on some platforms. Another
+            // process may have stored the same result in the meantime.
+            entry.delete();
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+                if (!entry.exists())
+                    throw new IOException("Could not rename " + temp + " to " + entry);
+            }
+        }
+    }
+}
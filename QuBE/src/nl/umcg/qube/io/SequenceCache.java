@@ -0,0 +1,314 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.SequenceIdentifier;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * SequenceCache keeps decoded 8-bit sequences on disk, so that reopening a
+ * DICOM file does not require decoding all frames again. Every entry is a
+ * single file with a small header followed by the pixels of all frames in the
+ * layout of {@link CAGSequence#createFrames(ByteBuffer, int, int, int)}. A
+ * cached sequence is memory mapped directly from that file, its pixels are
+ * never copied onto the heap.
+ * 
+ * Entries are keyed by the path, size and modification time of the source
+ * file and a hash over its first and last {@value #HASH_BLOCK} bytes (which
+ * include the DICOM header and offset table). When the cache grows beyond its
+ * limits, the least recently used entries are removed.
+ * 
+ * @author mathijs
+ */
+public class SequenceCache {
+    private static final int MAGIC = 0x51427343; // "QBsC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".qsc";
+    private static final int HASH_BLOCK = 65536;
+
+    /** Default maximum size of all entries together */
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+
+    protected final File directory;
+    protected final long maxBytes;
+    protected final int maxEntries;
+
+    /**
+     * Create a cache in a directory. The directory is created when it does not
+     * exist yet.
+     * 
+     * @param directory
+     *            The directory to store the entries in
+     * @param maxBytes
+     *            The maximum total size of all entries
+     * @param maxEntries
+     *            The maximum number of entries
+     */
+    public SequenceCache(File directory, long maxBytes, int maxEntries) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        directory.mkdirs();
+    }
+
+    public SequenceCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Hash the start and end of a file. Together with the size and
+     * modification time this detects a file that has been replaced.
+     */
+    protected static String contentHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            byte[] block = new byte[(int) Math.min(HASH_BLOCK, length)];
+            raf.readFully(block);
+            digest.update(block);
+            if (length > HASH_BLOCK) {
+                block = new byte[(int) Math.min(HASH_BLOCK, length - HASH_BLOCK)];
+                raf.seek(length - block.length);
+                raf.readFully(block);
+                digest.update(block);
+            }
+        } finally {
+            raf.close();
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    protected static String key(File file, String contentHash) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|"
+                + contentHash;
+    }
+
+    protected File entryFile(String key) {
+        return new File(directory, DigestUtils.md5Hex(key) + SUFFIX);
+    }
+
+    /**
+     * Try to load a sequence from the cache.
+     * 
+     * @param file
+     *            The DICOM file the sequence was decoded from
+     * @param id
+     *            The identifier to give the sequence
+     * @return The cached sequence, backed by a mapped file, or null when the
+     *         file is not in the cache
+     * @throws IOException
+     *             When the source file cannot be read
+     */
+    public CAGSequence load(File file, SequenceIdentifier id) throws IOException {
+        String key = key(file, contentHash(file));
+        File entry = entryFile(key);
+
+        synchronized (this) {
+            if (!entry.exists())
+                return null;
+
+            RandomAccessFile raf = new RandomAccessFile(entry, "r");
+            try {
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                    return null;
+                int dataOffset = raf.readInt();
+                if (!raf.readUTF().equals(key))
+                    return null;
+                int count = raf.readInt(), width = raf.readInt(), height = raf.readInt();
+                String patientName = raf.readUTF();
+                String studyID = raf.readUTF();
+
+                long size = (long) count * width * height;
+                if (raf.length() < dataOffset + size)
+                    return null;
+
+                // The mapping stays valid after the file is closed.
+                MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset, size);
+                CAGSequence sequence = new CAGSequence(CAGSequence.createFrames(pixels, count,
+                        width, height), id);
+                sequence.setPatientName(patientName);
+                sequence.setStudyID(studyID);
+
+                entry.setLastModified(System.currentTimeMillis());
+                return sequence;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Store a decoded sequence in the cache. The entry is written to a
+     * temporary file first, so a concurrent load never sees a partial entry.
+     * 
+     * @param file
+     *            The DICOM file the sequence was decoded from
+     * @param sequence
+     *            The decoded sequence
+     * @throws IOException
+     *             When the entry could not be written
+     */
+    public void store(File file, CAGSequence sequence) throws IOException {
+        String key = key(file, contentHash(file));
+        File entry = entryFile(key);
+        int count = sequence.frameCount(), width = sequence.getWidth(), height = sequence
+                .getHeight();
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(0); // data offset, filled in below
+        header.writeUTF(key);
+        header.writeInt(count);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeUTF(sequence.getPatientName() == null ? "" : sequence.getPatientName());
+        header.writeUTF(sequence.getStudyID() == null ? "" : sequence.getStudyID());
+        header.close();
+
+        // Align the pixel data to a page boundary.
+        byte[] head = Arrays.copyOf(headerBytes.toByteArray(),
+                (headerBytes.size() + 4095) / 4096 * 4096);
+        ByteBuffer.wrap(head).putInt(8, head.length);
+
+        synchronized (this) {
+            File temp = File.createTempFile("store", ".tmp", directory);
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                channel.write(ByteBuffer.wrap(head));
+                for (int i = 0; i < count; i++) {
+                    CAGFrame frame = sequence.getFrame(i);
+                    if (frame.getStride() == width) {
+                        writeRegion(channel, frame.getBuffer(), frame.getRowOffset(0), width
+                                * height);
+                    } else {
+                        for (int y = 0; y < height; y++)
+                            writeRegion(channel, frame.getBuffer(), frame.getRowOffset(y), width);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+
+            if (entry.exists() && !entry.delete()) {
+                // The old entry is still mapped somewhere; keep using it.
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp + " to " + entry);
+            }
+            evict(entry);
+        }
+    }
+
+    private static void writeRegion(FileChannel channel, ByteBuffer buffer, int offset, int length)
+            throws IOException {
+        ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length);
+        region.position(offset);
+        while (region.hasRemaining())
+            channel.write(region);
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is within its
+     * limits again.
+     * 
+     * @param keep
+     *            An entry that must not be removed
+     */
+    protected synchronized void evict(File keep) {
+        File[] entries = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (entries == null)
+            return;
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified(), m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        long total = 0;
+        for (File f : entries)
+            total += f.length();
+
+        int count = entries.length;
+        for (File f : entries) {
+            if (total <= maxBytes && count <= maxEntries)
+                break;
+            if (f.equals(keep))
+                continue;
+            long length = f.length();
+            // Deleting fails on some platforms when the entry is still mapped.
+            if (f.delete()) {
+                total -= length;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void clear() {
+        File[] entries = directory.listFiles();
+        if (entries != null)
+            for (File f : entries)
+                if (f.getName().endsWith(SUFFIX))
+                    f.delete();
+    }
+}
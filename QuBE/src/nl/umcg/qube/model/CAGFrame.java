@@ -18,23 +18,29 @@
  */
 package nl.umcg.qube.model;
 
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 
 /**
- * CAGFrame represents a single frame in a coronary angiography sequence. This
- * class uses a byte array to store the 8-bit values (unfortunately java byte is
- * signed), and converts this array to an array of ints on demand. The int array
- * is kept in a softreference so that it is freed when there is not enough
- * memory available.
+ * CAGFrame represents a single frame in a coronary angiography sequence. The
+ * 8-bit pixel values are stored row-major in a flat buffer, which is usually a
+ * slice of one store that holds all frames of a sequence (see
+ * {@link CAGSequence#createFrames(ByteBuffer, int, int, int)}). Java bytes are
+ * signed, so values should be read through {@link #getValue(int, int)} or
+ * {@link #getUnsigned(int)}, which return the unsigned grey value.
+ * 
+ * Processing code that walks over many pixels should not call getValue(x,y)
+ * for every pixel, but compute the index of a row once with
+ * {@link #getRowOffset(int)} and then read consecutive pixels with
+ * getUnsigned(index).
  * 
  * @author mathijs
  */
 public class CAGFrame {
-    protected byte[][] values;
+    protected final ByteBuffer data;
 
-    protected int width, height;
+    protected final int offset, stride;
 
-    protected SoftReference<short[][]> bufferedPixels = null;
+    protected final int width, height;
 
     public int getWidth() {
         return width;
@@ -45,41 +51,102 @@ public class CAGFrame {
     }
 
     public int getValue(int x, int y) {
-        if (values[y][x] < 0)
-            return values[y][x] + 256;
-        return values[y][x];
+        return data.get(offset + y * stride + x) & 0xFF;
     }
 
     /**
-     * Return an array of int values for all pixels. This is more efficient than
-     * calling getValue(x,y) very often. The returned array is not cloned, thus
-     * it must not be altered by the caller.
+     * Return the unsigned grey value at a position in the backing buffer.
      * 
-     * @return An array of greyvalues
+     * @param index
+     *            The index in the backing buffer, usually getRowOffset(y) + x
+     * @return The grey value (0-255)
      */
-    public short[][] getValues() {
-        short[][] vals = null;
+    public int getUnsigned(int index) {
+        return data.get(index) & 0xFF;
+    }
 
-        if (bufferedPixels != null)
-            vals = bufferedPixels.get();
+    /**
+     * Return the index in the backing buffer of the first pixel of a row.
+     * 
+     * @param y
+     *            The row
+     * @return The index of pixel (0, y)
+     */
+    public int getRowOffset(int y) {
+        assert y >= 0 && y < height : "row " + y + " outside frame of height " + height;
+        return offset + y * stride;
+    }
 
-        if (vals == null) {
-            vals = new short[height][width];
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++) {
-                    if (values[y][x] < 0)
-                        vals[y][x] = (short) (256 + values[y][x]);
-                    else
-                        vals[y][x] = values[y][x];
-                }
-            bufferedPixels = new SoftReference<short[][]>(vals);
+    /**
+     * @return the distance in the backing buffer between two vertically
+     *         adjacent pixels
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Copy the pixels of a row into an array, which is faster than reading them
+     * one by one.
+     * 
+     * @param y
+     *            The row
+     * @param dest
+     *            The array to copy the width pixels of the row into
+     */
+    public void getRow(int y, byte[] dest) {
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + getRowOffset(y), dest, 0, width);
+        } else {
+            ByteBuffer buf = data.duplicate();
+            buf.position(getRowOffset(y));
+            buf.get(dest, 0, width);
         }
-        return vals;
     }
 
+    /**
+     * Return the buffer holding the pixels. The buffer may be shared with
+     * other frames and must not be altered by the caller.
+     * 
+     * @return the backing buffer
+     */
+    public ByteBuffer getBuffer() {
+        return data;
+    }
+
+    /**
+     * Create a frame that views a region of a flat buffer.
+     * 
+     * @param data
+     *            The buffer holding the pixels, row-major
+     * @param offset
+     *            The index of pixel (0, 0) in data
+     * @param width
+     *            The width of the frame
+     * @param height
+     *            The height of the frame
+     * @param stride
+     *            The distance between the start of two consecutive rows
+     */
+    public CAGFrame(ByteBuffer data, int offset, int width, int height, int stride) {
+        this.data = data;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * Create a frame from a separate array per row. The values are copied into
+     * a new flat buffer.
+     * 
+     * @param values
+     *            The pixel values, indexed [y][x]
+     */
     public CAGFrame(byte[][] values) {
-        this.values = values;
-        width = values[0].length;
-        height = values.length;
+        this(ByteBuffer.wrap(new byte[values.length * values[0].length]), 0, values[0].length,
+                values.length, values[0].length);
+        for (int y = 0; y < height; y++)
+            System.arraycopy(values[y], 0, data.array(), y * width, width);
     }
 }
@@ -18,6 +18,8 @@
  */
 package nl.umcg.qube.model;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author mathijs
  * 
@@ -48,11 +50,54 @@ public class CAGSequence {
         return frames[index];
     }
 
+    /**
+     * Create the frames of a sequence whose pixels are stored in one flat
+     * buffer: all pixels of frame 0 row by row, followed by those of frame 1,
+     * etc. A 512x512 sequence thus takes exactly 256 kB per frame. Every frame
+     * views its own slice of the buffer, so reading outside a frame throws
+     * instead of returning pixels of the next or previous frame.
+     * 
+     * @param store
+     *            The buffer holding count * width * height pixels
+     * @param count
+     *            The number of frames
+     * @param width
+     *            The width of each frame
+     * @param height
+     *            The height of each frame
+     * @return The frames, which all view a part of the same buffer
+     */
+    public static CAGFrame[] createFrames(ByteBuffer store, int count, int width, int height) {
+        if ((long) count * width * height > store.capacity())
+            throw new IllegalArgumentException("store too small for " + count + " frames");
+        CAGFrame[] frames = new CAGFrame[count];
+        int size = width * height;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer part = store.duplicate();
+            part.limit((i + 1) * size);
+            part.position(i * size);
+            frames[i] = new CAGFrame(part.slice(), 0, width, height, width);
+        }
+        return frames;
+    }
+
     public CAGSequence(CAGFrame[] frames, SequenceIdentifier id) {
         this.frames = frames;
         sequenceID = id;
     }
 
+    /**
+     * Constructor for subclasses that provide their frames in another way, by
+     * overriding getFrame, frameCount, getWidth, getHeight and getFrames.
+     * 
+     * @param id
+     *            The identifier of the sequence
+     */
+    protected CAGSequence(SequenceIdentifier id) {
+        this.frames = null;
+        sequenceID = id;
+    }
+
     public int getWidth() {
         return frames[0].getWidth();
     }
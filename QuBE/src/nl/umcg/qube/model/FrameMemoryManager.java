@@ -0,0 +1,271 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * FrameMemoryManager keeps track of pixel buffers that can be recomputed when
+ * needed, such as lazily decoded frames and median filtered backgrounds. All
+ * buffers together are kept within a byte budget. When a new buffer does not
+ * fit, buffers of the owners with the lowest priority are dropped first, and
+ * among those the least recently used ones.
+ * 
+ * Every buffer belongs to an owner (usually the SequenceIdentifier of the
+ * sequence it was made from) and has a key that is unique within that owner.
+ * Since this replaces soft references, buffers are only dropped when the
+ * budget is exceeded, never all at once when the heap gets tight.
+ * 
+ * @author mathijs
+ */
+public class FrameMemoryManager {
+    /** Priority of owners for which no priority has been set */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    /** Priority of the sequence that is currently shown */
+    public static final int VISIBLE_PRIORITY = 10;
+
+    private static FrameMemoryManager instance;
+
+    protected static class Entry {
+        final Object owner, key;
+        final Object value;
+        final long bytes;
+
+        Entry(Object owner, Object key, Object value, long bytes) {
+            this.owner = owner;
+            this.key = key;
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    protected static class EntryKey {
+        final Object owner, key;
+
+        EntryKey(Object owner, Object key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EntryKey))
+                return false;
+            EntryKey ek = (EntryKey) o;
+            return owner.equals(ek.owner) && key.equals(ek.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return owner.hashCode() * 31 + key.hashCode();
+        }
+    }
+
+    protected long budget;
+    protected long residentBytes = 0;
+    protected long hits = 0, misses = 0, evictions = 0;
+
+    /** All entries, least recently used first */
+    protected final LinkedHashMap<EntryKey, Entry> entries = new LinkedHashMap<EntryKey, Entry>(
+            16, 0.75f, true);
+    protected final HashMap<Object, Integer> priorities = new HashMap<Object, Integer>();
+
+    /**
+     * Create a memory manager.
+     * 
+     * @param budget
+     *            The maximum number of bytes in all buffers together
+     */
+    public FrameMemoryManager(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Return the memory manager shared by the whole program. Its budget is
+     * taken from the system property qube.memory.budget (in MB) and defaults
+     * to a quarter of the maximum heap size.
+     * 
+     * @return the shared instance
+     */
+    public static synchronized FrameMemoryManager getInstance() {
+        if (instance == null) {
+            long budget = Long.getLong("qube.memory.budget", -1);
+            if (budget >= 0)
+                budget <<= 20;
+            else
+                budget = Runtime.getRuntime().maxMemory() / 4;
+            instance = new FrameMemoryManager(budget);
+        }
+        return instance;
+    }
+
+    /**
+     * Look a buffer up.
+     * 
+     * @param owner
+     *            The owner of the buffer
+     * @param key
+     *            The key of the buffer
+     * @return The buffer, or null when it is not (or no longer) present
+     */
+    public synchronized Object get(Object owner, Object key) {
+        Entry e = entries.get(new EntryKey(owner, key));
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /**
+     * Check whether a buffer is present, without counting this as a hit or
+     * miss or marking the buffer as used.
+     */
+    public synchronized boolean contains(Object owner, Object key) {
+        return entries.containsKey(new EntryKey(owner, key));
+    }
+
+    /**
+     * Add a buffer, evicting other buffers when the budget is exceeded. A
+     * buffer that is larger than the budget on its own is not stored.
+     * 
+     * @param owner
+     *            The owner of the buffer
+     * @param key
+     *            The key of the buffer
+     * @param value
+     *            The buffer
+     * @param bytes
+     *            The size of the buffer
+     */
+    public synchronized void put(Object owner, Object key, Object value, long bytes) {
+        remove(owner, key);
+        if (bytes > budget)
+            return;
+        entries.put(new EntryKey(owner, key), new Entry(owner, key, value, bytes));
+        residentBytes += bytes;
+        evict(budget);
+    }
+
+    /**
+     * Remove a buffer.
+     */
+    public synchronized void remove(Object owner, Object key) {
+        Entry e = entries.remove(new EntryKey(owner, key));
+        if (e != null)
+            residentBytes -= e.bytes;
+    }
+
+    /**
+     * Remove all buffers of an owner, for instance when its sequence is
+     * closed.
+     */
+    public synchronized void removeAll(Object owner) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.owner.equals(owner)) {
+                residentBytes -= e.bytes;
+                it.remove();
+            }
+        }
+        priorities.remove(owner);
+    }
+
+    /**
+     * Set the priority of an owner. Buffers of owners with a lower priority are
+     * evicted first.
+     */
+    public synchronized void setPriority(Object owner, int priority) {
+        if (priority == DEFAULT_PRIORITY)
+            priorities.remove(owner);
+        else
+            priorities.put(owner, priority);
+    }
+
+    public synchronized int getPriority(Object owner) {
+        Integer p = priorities.get(owner);
+        return p == null ? DEFAULT_PRIORITY : p;
+    }
+
+    /**
+     * Change the budget, evicting buffers when the new budget is smaller.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict(budget);
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Evict buffers until at most limit bytes are resident.
+     */
+    protected void evict(long limit) {
+        while (residentBytes > limit) {
+            // Find the lowest priority that has buffers
+            int lowest = Integer.MAX_VALUE;
+            for (Entry e : entries.values())
+                lowest = Math.min(lowest, getPriority(e.owner));
+
+            // Drop the least recently used buffers of that priority
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext() && residentBytes > limit) {
+                Entry e = it.next();
+                if (getPriority(e.owner) == lowest) {
+                    residentBytes -= e.bytes;
+                    evictions++;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getBufferCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d buffers, %d/%d kB, %d hits, %d misses, %d evictions", entries
+                .size(), residentBytes >> 10, budget >> 10, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,179 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
+
+/**
+ * BackgroundCache keeps the median filtered backgrounds of frames, so that
+ * recalculating the blush value after changing the polygon does not have to
+ * filter every frame again. Backgrounds are stored in a
+ * {@link FrameMemoryManager} under the SequenceIdentifier of the sequence and
+ * the filter size, so their memory is bounded and old ones are evicted.
+ * 
+ * A background is only calculated for the part of the frame that is asked
+ * for, plus a margin. When a later request reaches outside that part, only the
+ * missing pixels are filtered and added to the same background.
+ * 
+ * @author mathijs
+ */
+public class BackgroundCache {
+    /** Extra pixels around the requested area to filter right away */
+    public static final int MARGIN = 16;
+
+    protected final FrameMemoryManager memory;
+    protected final int filterSize;
+
+    protected long hits = 0, extensions = 0, misses = 0;
+
+    /**
+     * A background, and the part of the frame it has been calculated for.
+     */
+    protected static class Background {
+        final byte[] pixels;
+        final CAGFrame frame;
+        Rectangle area;
+
+        Background(int width, int height) {
+            pixels = new byte[width * height];
+            frame = new CAGFrame(ByteBuffer.wrap(pixels), 0, width, height, width);
+            area = new Rectangle();
+        }
+    }
+
+    /**
+     * @param memory
+     *            The memory manager to store backgrounds in
+     * @param filterSize
+     *            The window size of the median filter
+     */
+    public BackgroundCache(FrameMemoryManager memory, int filterSize) {
+        this.memory = memory;
+        this.filterSize = filterSize;
+    }
+
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    /**
+     * Return the median filtered background of a frame.
+     * 
+     * @param sequence
+     *            The sequence
+     * @param i
+     *            The frame number
+     * @param area
+     *            The part of the frame that the background is needed for. The
+     *            returned frame may be 0 outside of it.
+     * @return The background, which must not be altered
+     */
+    public CAGFrame getBackground(CAGSequence sequence, int i, Rectangle area) {
+        int width = sequence.getWidth(), height = sequence.getHeight();
+        Rectangle needed = area.intersection(new Rectangle(width, height));
+        String key = "median " + filterSize + " " + i;
+
+        Background bg = (Background) memory.get(sequence.getID(), key);
+        boolean added = false;
+        if (bg == null) {
+            bg = new Background(width, height);
+            added = true;
+        }
+
+        synchronized (bg) {
+            if (!needed.isEmpty() && !bg.area.contains(needed)) {
+                Rectangle grown = new Rectangle(needed);
+                grown.grow(MARGIN, MARGIN);
+                grown = grown.intersection(new Rectangle(width, height));
+                extend(sequence.getFrame(i), bg, grown);
+                synchronized (this) {
+                    if (added)
+                        misses++;
+                    else
+                        extensions++;
+                }
+            } else {
+                synchronized (this) {
+                    hits++;
+                }
+            }
+        }
+
+        if (added)
+            memory.put(sequence.getID(), key, bg, (long) width * height);
+        return bg.frame;
+    }
+
+    /**
+     * Filter the pixels of area that have not been filtered yet, and add area
+     * to the filtered part of the background.
+     */
+    protected void extend(CAGFrame frame, Background bg, Rectangle area) {
+        Rectangle old = bg.area;
+        if (old.isEmpty()) {
+            MedianFilter.constantTimeBoundaryFilter(frame, filterSize, area, bg.pixels);
+            bg.area = area;
+            return;
+        }
+
+        Rectangle union = old.union(area);
+        // Strips above and below the old area, over the full width
+        filterPart(frame, bg, union.x, union.y, union.width, old.y - union.y);
+        filterPart(frame, bg, union.x, old.y + old.height, union.width, union.y + union.height
+                - old.y - old.height);
+        // Strips left and right of the old area
+        filterPart(frame, bg, union.x, old.y, old.x - union.x, old.height);
+        filterPart(frame, bg, old.x + old.width, old.y, union.x + union.width - old.x
+                - old.width, old.height);
+        bg.area = union;
+    }
+
+    private void filterPart(CAGFrame frame, Background bg, int x, int y, int w, int h) {
+        if (w > 0 && h > 0)
+            MedianFilter.constantTimeBoundaryFilter(frame, filterSize, new Rectangle(x, y, w, h),
+                    bg.pixels);
+    }
+
+    /**
+     * @return the number of requests that were served without filtering
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests for which part of a background had to be
+     *         filtered
+     */
+    public synchronized long getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * @return the number of requests for which no background was present
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -18,6 +18,16 @@
  */
 package nl.umcg.qube.process;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.umcg.qube.model.CAGFrame;
 import nl.umcg.qube.model.CAGSequence;
 import nl.umcg.qube.model.MoveCorrection;
 
@@ -27,17 +37,55 @@ import nl.umcg.qube.model.MoveCorrection;
  * direction. To prevent longer-term drift, the current frame is also compared
  * to older frames. For efficiency, the number of older frames to compare to is
  * O(log(i)) where i is the frame number (hence the name BinaryMoveCalc).
+ * 
+ * Shifts are tried in rings around the shift of the previous frame, because
+ * the best shift is usually close to it. The score of a shift is abandoned as
+ * soon as it is higher than the best score found so far. When the calculator
+ * is given a ForkJoinPool, blocks of shifts are spread over it. Ties are
+ * resolved in favour of the shift that comes first with tx and then ty
+ * increasing, so the result is exactly that of trying every shift in that
+ * order.
  */
 public class BinaryMoveCalc implements IMoveCalculator {
+    /** Change this whenever the results of this calculator change */
+    private static final String VERSION = "2";
+    private static final int RANGE = 10;
+    private static final int SIDE = 2 * RANGE + 1;
+    /** The number of shifts a worker takes at a time */
+    private static final int BLOCK = 8;
+
+    /** The pool to try shifts on, null to try them on the calling thread */
+    protected final ForkJoinPool pool;
+    /** The number of workers that try shifts */
+    protected final int threads;
+
+    public BinaryMoveCalc() {
+        this(SharedPool.get());
+    }
+
+    /**
+     * @param pool
+     *            The pool to try shifts on, or null to try them on the
+     *            calling thread. The calculator does not shut it down, so it
+     *            can be shared, see {@link SharedPool}.
+     */
+    public BinaryMoveCalc(ForkJoinPool pool) {
+        this.pool = pool;
+        threads = pool == null ? 1 : pool.getParallelism();
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
 
     @Override
     public MoveCorrection getMoveCorrection(CAGSequence sequence) {
         int[] dx = new int[sequence.frameCount()], dy = new int[sequence.frameCount()];
+        int bx = 0, by = 0;
 
         for (int i = 1; i < dx.length; i++) {
-            long bestScore = Long.MAX_VALUE;
-            int bx = 0, by = 0;
-            short[][] pixels = sequence.getFrame(i).getValues();
+            CAGFrame frame = sequence.getFrame(i);
 
             // Determine the number of previous frames to compare to.
             int offset = 1;
@@ -47,49 +95,23 @@ public class BinaryMoveCalc implements IMoveCalculator {
                 offset *= 2;
             }
 
-            // Fetch pixel values of previous frames.
-            short[][][] prev_pixels = new short[cnt][][];
+            // Fetch previous frames, and the shift of each relative to the
+            // previous frame.
+            CAGFrame[] prev_frames = new CAGFrame[cnt];
+            int[] odx = new int[cnt], ody = new int[cnt];
             offset = 1;
             for (int k = 0; k < cnt; k++) {
-                prev_pixels[k] = sequence.getFrame(i - offset).getValues();
+                prev_frames[k] = sequence.getFrame(i - offset);
+                odx[k] = dx[i - offset] - dx[i - 1];
+                ody[k] = dy[i - offset] - dy[i - 1];
                 offset *= 2;
             }
 
-            // Test for each difference in x and y between -10 and 10.
-            for (int tx = -10; tx <= 10; tx++)
-                for (int ty = -10; ty <= 10; ty++) {
-
-                    short[][] pp;
-                    offset = 1;
-                    long score = 0;
-                    for (int k = 0; k < cnt; k++) {
-                        int tx2 = tx + dx[i - offset] - dx[i - 1];
-                        int ty2 = ty + dy[i - offset] - dy[i - 1];
-                        pp = prev_pixels[k];
-
-                        // Only check the middle part of the frame and take
-                        // steps of 4 pixels at a time for performance.
-                        for (int y = 128; y < 384; y += 4)
-                            for (int x = 128; x < 384; x += 4) {
-
-                                int scInc = (pixels[y][x] - pp[y + ty2][x + tx2])
-                                        * (pixels[y][x] - pp[y + ty2][x + tx2]);
-                                // Cap the maximum squared difference to
-                                // mitigate the effect of outliers somewhat.
-                                if (scInc > 100)
-                                    scInc = 100;
-                                score += scInc;
-                            }
-                        offset *= 2;
-                    }
-
-                    // Store the tx, ty with the lowest squared difference.
-                    if (score < bestScore) {
-                        bestScore = score;
-                        bx = tx;
-                        by = ty;
-                    }
-                }
+            // Test for each difference in x and y between -10 and 10,
+            // starting at the shift of the previous frame.
+            int best = findBest(frame, prev_frames, odx, ody, spiral(bx, by));
+            bx = best / SIDE - RANGE;
+            by = best % SIDE - RANGE;
 
             dx[i] = dx[i - 1] - bx;
             dy[i] = dy[i - 1] - by;
@@ -103,4 +125,159 @@ public class BinaryMoveCalc implements IMoveCalculator {
 
         return new MoveCorrection(dx, dy);
     }
+
+    /**
+     * Return the indices of all shifts, (tx + 10) * 21 + (ty + 10), ordered by
+     * their distance to (cx, cy).
+     */
+    protected static int[] spiral(int cx, int cy) {
+        int[] order = new int[SIDE * SIDE];
+        int n = 0;
+        for (int d = 0; n < order.length; d++)
+            for (int tx = -RANGE; tx <= RANGE; tx++)
+                for (int ty = -RANGE; ty <= RANGE; ty++)
+                    if (Math.max(Math.abs(tx - cx), Math.abs(ty - cy)) == d)
+                        order[n++] = (tx + RANGE) * SIDE + ty + RANGE;
+        return order;
+    }
+
+    /**
+     * Find the shift with the lowest score.
+     * 
+     * @param order
+     *            The indices of the shifts in the order to try them
+     * @return The index of the best shift
+     */
+    protected int findBest(final CAGFrame frame, final CAGFrame[] prev_frames, final int[] odx,
+            final int[] ody, final int[] order) {
+        final AtomicLong bound = new AtomicLong(Long.MAX_VALUE);
+        final AtomicInteger next = new AtomicInteger();
+        final long[] bestScores = new long[threads];
+        final int[] bestIndices = new int[threads];
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    long bestScore = Long.MAX_VALUE;
+                    int bestIndex = Integer.MAX_VALUE;
+                    int start;
+                    while ((start = next.getAndAdd(BLOCK)) < order.length) {
+                        for (int n = start; n < Math.min(start + BLOCK, order.length); n++) {
+                            int index = order[n];
+                            long score = score(frame, prev_frames, odx, ody, index / SIDE
+                                    - RANGE, index % SIDE - RANGE, bound.get());
+                            if (score < bestScore || (score == bestScore && index < bestIndex)) {
+                                bestScore = score;
+                                bestIndex = index;
+                                lower(bound, score);
+                            }
+                        }
+                    }
+                    bestScores[worker] = bestScore;
+                    bestIndices[worker] = bestIndex;
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        long bestScore = Long.MAX_VALUE;
+        int bestIndex = Integer.MAX_VALUE;
+        for (int t = 0; t < threads; t++) {
+            if (bestScores[t] < bestScore
+                    || (bestScores[t] == bestScore && bestIndices[t] < bestIndex)) {
+                bestScore = bestScores[t];
+                bestIndex = bestIndices[t];
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Calculate the capped sum of squared differences between the frame and
+     * the previous frames for a shift. Samples of a previous frame that fall
+     * outside it are taken from its nearest border pixel, so that calculators
+     * that search larger shifts can use this score too.
+     * 
+     * @param bound
+     *            The score is abandoned once it is higher than this
+     * @return The score, or Long.MAX_VALUE if it was abandoned
+     */
+    protected static long score(CAGFrame frame, CAGFrame[] prev_frames, int[] odx, int[] ody,
+            int tx, int ty, long bound) {
+        long score = 0;
+        for (int k = 0; k < prev_frames.length; k++) {
+            int tx2 = tx + odx[k];
+            int ty2 = ty + ody[k];
+            CAGFrame pp = prev_frames[k];
+            int pw = pp.getWidth(), ph = pp.getHeight();
+            boolean inside = 128 + tx2 >= 0 && 383 + tx2 < pw && 128 + ty2 >= 0
+                    && 383 + ty2 < ph;
+
+            // Only check the middle part of the frame and take steps of 4
+            // pixels at a time for performance.
+            for (int y = 128; y < 384; y += 4) {
+                int row = frame.getRowOffset(y);
+                int prow = pp.getRowOffset(inside ? y + ty2 : clamp(y + ty2, ph));
+                for (int x = 128; x < 384; x += 4) {
+                    int px = inside ? prow + x + tx2 : prow + clamp(x + tx2, pw);
+                    int diff = frame.getUnsigned(row + x) - pp.getUnsigned(px);
+                    int scInc = diff * diff;
+                    // Cap the maximum squared difference to mitigate the
+                    // effect of outliers somewhat.
+                    if (scInc > 100)
+                        scInc = 100;
+                    score += scInc;
+                }
+                // The score only grows, so this shift cannot win anymore.
+                if (score > bound)
+                    return Long.MAX_VALUE;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Clamp a coordinate to 0 ... size - 1.
+     */
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    /**
+     * Lower the value of bound to value, if it is higher.
+     */
+    private static void lower(AtomicLong bound, long value) {
+        long cur;
+        while (value < (cur = bound.get()))
+            if (bound.compareAndSet(cur, value))
+                return;
+    }
+
+    /**
+     * Run tasks on the pool, or one after another when there is no pool, and
+     * wait until all are done.
+     */
+    protected void runAll(List<Callable<Object>> tasks) {
+        try {
+            if (pool == null) {
+                for (Callable<Object> task : tasks)
+                    task.call();
+            } else {
+                for (Future<Object> f : pool.invokeAll(tasks))
+                    f.get();
+            }
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ee.getCause();
+            throw new RuntimeException(ee.getCause());
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
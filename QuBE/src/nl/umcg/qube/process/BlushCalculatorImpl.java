@@ -18,11 +18,18 @@
  */
 package nl.umcg.qube.process;
 
-import java.awt.Point;
-import java.util.HashSet;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import nl.umcg.qube.model.CAGFrame;
 import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
 import nl.umcg.qube.model.MoveCorrection;
 import nl.umcg.qube.model.Polygon;
 
@@ -30,65 +37,174 @@ import nl.umcg.qube.model.Polygon;
  * This class performs the calculation of the QuBE value, given a CAG sequence,
  * the information for panning correction and the user-drawn polygon.
  * 
+ * The blush value of every frame is calculated independently of the other
+ * frames. When the calculator is given a ForkJoinPool, frames are processed in
+ * parallel on it. The result is exactly the same as with a single thread.
+ * 
  * @author mathijs
  */
 public class BlushCalculatorImpl implements IBlushCalculator {
     private static final int BLOCKSIZE = 5;
     private static final int MEDIAN_FILTER_SIZE = 35;
 
-    public CalculationResult calculate(CAGSequence sequence, Polygon poly, MoveCorrection mc) {
-        // Array holding all median filtered values of the sequence
-        short[][][] medpixels = new short[sequence.frameCount()][][];
+    // Fluctuate the polygon by 4 and 8 pixels in all directions
+    // to make the exact placement of points less important.
+    private static final int[] adx = new int[] { 0, -4, 4, 0, 0, -8, 8, 0, 0 };
+    private static final int[] ady = new int[] { 0, 0, 0, -4, 4, 0, 0, -8, 8 };
+    private static final int MIN_ADX = -8, MAX_ADX = 8, MIN_ADY = -8, MAX_ADY = 8;
 
-        // Array holding all source pixels of the sequence
-        short[][][] pixels = new short[sequence.frameCount()][][];
+    protected final BackgroundCache backgrounds;
 
-        // Get source & median filtered pixels
-        for (int i = 0; i < Math.min(125, sequence.frameCount()); i++) {
-            pixels[i] = sequence.getFrame(i).getValues();
-            medpixels[i] = MedianFilter.fastBoundaryfilter(pixels[i], MEDIAN_FILTER_SIZE);
+    /** The buffer for the blush ratios of a frame, one per thread */
+    private final ThreadLocal<double[]> ratioBuffer = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[0];
         }
+    };
 
-        // Rasterize the polygon.
-        List<Point> points = PolygonRasterizer.rasterize(poly);
-        double[] curveValues = new double[sequence.frameCount()];
-        HashSet<Integer> blocks = new HashSet<Integer>();
-        for (Point p : points)
-            blocks.add(((p.y / BLOCKSIZE) * BLOCKSIZE) * 1000 + ((p.x / BLOCKSIZE) * BLOCKSIZE));
-        double[] values = new double[blocks.size()];
-        double[] blockvalues = new double[BLOCKSIZE * BLOCKSIZE];
+    /** The pool to process frames on, null to process them one by one */
+    protected final ForkJoinPool pool;
+
+    public BlushCalculatorImpl() {
+        this(FrameMemoryManager.getInstance(), SharedPool.get());
+    }
+
+    /**
+     * @param memory
+     *            The memory manager that keeps the median filtered
+     *            backgrounds of the frames, so that recalculating with another
+     *            polygon is fast
+     * @param pool
+     *            The pool to process frames on, or null to process them one
+     *            by one on the calling thread. The calculator does not shut it
+     *            down, so it can be shared, see {@link SharedPool}.
+     */
+    public BlushCalculatorImpl(FrameMemoryManager memory, ForkJoinPool pool) {
+        backgrounds = new BackgroundCache(memory, MEDIAN_FILTER_SIZE);
+        this.pool = pool;
+    }
 
-        // Fluctuate the polygon by 4 and 8 pixels in all directions
-        // to make the exact placement of points less important.
-        int[] adx = new int[] { 0, -4, 4, 0, 0, -8, 8, 0, 0 };
-        int[] ady = new int[] { 0, 0, 0, -4, 4, 0, 0, -8, 8 };
+    /**
+     * Calculate the blush value of a single frame: the mean of the values of
+     * the polygon at each of the fluctuated positions.
+     * 
+     * @param sequence
+     *            The sequence
+     * @param i
+     *            The frame number
+     * @param blocks
+     *            The top left corners of the blocks in the polygon, encoded as
+     *            y * 1000 + x
+     * @param bounds
+     *            The bounding box of the blocks
+     * @param mc
+     *            The panning correction
+     * @return The blush value of frame i
+     */
+    protected double frameValue(CAGSequence sequence, int i, int[] blocks, Rectangle bounds,
+            MoveCorrection mc) {
+        // Only the background under the blocks at all fluctuated positions is
+        // needed. Median filtering just that part is much cheaper than
+        // filtering the whole frame.
+        Rectangle area = new Rectangle(bounds.x + mc.dx[i] + MIN_ADX, bounds.y + mc.dy[i]
+                + MIN_ADY, bounds.width + MAX_ADX - MIN_ADX, bounds.height + MAX_ADY - MIN_ADY);
+        CAGFrame frame = sequence.getFrame(i);
+        CAGFrame med = backgrounds.getBackground(sequence, i, area);
+        double[] ratios = ratios(frame, med, area);
+        double[] values = new double[blocks.length];
+        double[] blockvalues = new double[BLOCKSIZE * BLOCKSIZE];
+        double curveValue = 0;
 
         for (int r = 0; r < adx.length; r++) {
-            for (int i = 0; i < Math.min(125, sequence.frameCount()); i++) {
-                int idx = 0;
-
-                for (int ind : blocks) {
-                    int blockind = 0;
-                    int x = (ind % 1000) + mc.dx[i] + adx[r], y = (ind / 1000) + mc.dy[i] + ady[r];
-
-                    for (int dx = 0; dx < BLOCKSIZE; dx++)
-                        for (int dy = 0; dy < BLOCKSIZE; dy++)
-                            if (x + dx >= 0 && x + dx < 512 && y + dy >= 0 && y + dy < 512
-                                    && medpixels[i][y + dy][x + dx] > 10) {
-                                blockvalues[blockind] = (medpixels[i][y + dy][x + dx] - pixels[i][y
-                                        + dy][x + dx])
-                                        * 128.0 / medpixels[i][y + dy][x + dx];
-                                blockind++;
-                            }
-                    if (blockind > BLOCKSIZE * BLOCKSIZE / 2) {
-                        values[idx] = TrimmedMean.trimMean(blockvalues, 0, blockind, 0.75, 1);
-                        idx++;
+            int idx = 0;
+
+            for (int ind : blocks) {
+                int blockind = 0;
+                int x = (ind % 1000) + mc.dx[i] + adx[r], y = (ind / 1000) + mc.dy[i] + ady[r];
+
+                for (int dy = 0; dy < BLOCKSIZE; dy++) {
+                    int row = (y + dy - area.y) * area.width + x - area.x;
+                    for (int dx = 0; dx < BLOCKSIZE; dx++) {
+                        double ratio = ratios[row + dx];
+                        if (!Double.isNaN(ratio)) {
+                            blockvalues[blockind] = ratio;
+                            blockind++;
+                        }
                     }
                 }
-                curveValues[i] += TrimmedMean.trimMean(values, 0, idx, 0.5, 1) / adx.length;
+                if (blockind > BLOCKSIZE * BLOCKSIZE / 2) {
+                    values[idx] = TrimmedMean.trimMean(blockvalues, 0, blockind, 0.75, 1);
+                    idx++;
+                }
             }
+            curveValue += TrimmedMean.trimMean(values, 0, idx, 0.5, 1) / adx.length;
+        }
+        return curveValue;
+    }
 
+    /**
+     * Calculate the blush ratio (med - px) * 128 / med of every pixel in an
+     * area once, so that the blocks at all fluctuated positions can read it.
+     * 
+     * @return The ratios, row-major over the area. Pixels outside the frame
+     *         or with a background of 10 or less are NaN. The array is reused
+     *         by the next call on the same thread.
+     */
+    protected double[] ratios(CAGFrame frame, CAGFrame med, Rectangle area) {
+        double[] ratios = ratioBuffer.get();
+        if (ratios.length < area.width * area.height) {
+            ratios = new double[area.width * area.height];
+            ratioBuffer.set(ratios);
         }
+        int width = frame.getWidth(), height = frame.getHeight();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int base = (y - area.y) * area.width - area.x;
+            if (y < 0 || y >= height) {
+                Arrays.fill(ratios, base + area.x, base + area.x + area.width, Double.NaN);
+                continue;
+            }
+            int row = frame.getRowOffset(y), medrow = med.getRowOffset(y);
+            for (int x = area.x; x < area.x + area.width; x++) {
+                int m = x < 0 || x >= width ? 0 : med.getUnsigned(medrow + x);
+                ratios[base + x] = m > 10 ? (m - frame.getUnsigned(row + x)) * 128.0 / m
+                        : Double.NaN;
+            }
+        }
+        return ratios;
+    }
+
+    public CalculationResult calculate(final CAGSequence sequence, Polygon poly,
+            final MoveCorrection mc) {
+        // Rasterize the polygon and find the blocks it covers.
+        PolygonRasterizer rasterizer = new PolygonRasterizer();
+        rasterizer.scan(poly);
+        final int[] blocks = new int[rasterizer.findBlocks(BLOCKSIZE)];
+        for (int n = 0; n < blocks.length; n++)
+            blocks[n] = rasterizer.getBlockY(n) * 1000 + rasterizer.getBlockX(n);
+        Rectangle blockBounds = null;
+        for (int ind : blocks) {
+            Rectangle block = new Rectangle(ind % 1000, ind / 1000, BLOCKSIZE, BLOCKSIZE);
+            if (blockBounds == null)
+                blockBounds = block;
+            else
+                blockBounds.add(block);
+        }
+        final Rectangle bounds = blockBounds == null ? new Rectangle() : blockBounds;
+
+        final double[] curveValues = new double[sequence.frameCount()];
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < Math.min(125, sequence.frameCount()); i++) {
+            final int frame = i;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    curveValues[frame] = frameValue(sequence, frame, blocks, bounds, mc);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
 
         CalculationResult res = new CalculationResult();
         res.curve = curveValues;
@@ -115,4 +231,28 @@ public class BlushCalculatorImpl implements IBlushCalculator {
 
         return res;
     }
+
+    /**
+     * Run tasks on the pool, or one after another when there is no pool, and
+     * wait until all are done.
+     */
+    protected void runAll(List<Callable<Object>> tasks) {
+        try {
+            if (pool == null) {
+                for (Callable<Object> task : tasks)
+                    task.call();
+            } else {
+                for (Future<Object> f : pool.invokeAll(tasks))
+                    f.get();
+            }
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ee.getCause();
+            throw new RuntimeException(ee.getCause());
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
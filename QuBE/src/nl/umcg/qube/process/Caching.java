@@ -18,30 +18,209 @@
  */
 package nl.umcg.qube.process;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import nl.umcg.qube.model.CAGSequence;
 import nl.umcg.qube.model.MoveCorrection;
+import nl.umcg.qube.model.SequenceIdentifier;
 
 /**
  * @author mathijs
  * 
  */
 public class Caching {
+    /**
+     * A move calculator that remembers the results of another one per
+     * SequenceIdentifier. It can be used from several threads at once: when a
+     * second thread asks for a sequence that is being calculated, it waits for
+     * that calculation instead of starting another one.
+     * 
+     * The cache holds at most maxEntries results; the least recently used ones
+     * are evicted first. Results older than maxAge are calculated again.
+     */
     public static class CachingMoveCalculator implements IMoveCalculator {
+        public static final int DEFAULT_MAX_ENTRIES = 100;
+        public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000L;
+
+        /**
+         * A result, or the calculation of it that is in progress.
+         */
+        private static class Entry {
+            final FutureTask<MoveCorrection> task;
+            final long created = System.currentTimeMillis();
+            volatile long lastUsed = created;
+
+            Entry(FutureTask<MoveCorrection> task) {
+                this.task = task;
+            }
+        }
+
         private IMoveCalculator calculator;
-        private HashMap<String, MoveCorrection> cache = new HashMap<String, MoveCorrection>();
+        private final ConcurrentHashMap<SequenceIdentifier, Entry> cache =
+                new ConcurrentHashMap<SequenceIdentifier, Entry>();
+        private final int maxEntries;
+        private final long maxAge;
+
+        private long hits = 0, misses = 0, evictions = 0, computeNanos = 0;
 
         public CachingMoveCalculator(IMoveCalculator moveCalculator) {
+            this(moveCalculator, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+        }
+
+        /**
+         * @param moveCalculator
+         *            The calculator to remember the results of
+         * @param maxEntries
+         *            The maximum number of results to keep
+         * @param maxAge
+         *            The time in ms after which a result is calculated again,
+         *            or 0 to keep results forever
+         */
+        public CachingMoveCalculator(IMoveCalculator moveCalculator, int maxEntries, long maxAge) {
             calculator = moveCalculator;
+            this.maxEntries = maxEntries;
+            this.maxAge = maxAge;
         }
 
         @Override
-        public MoveCorrection getMoveCorrection(CAGSequence sequence) {
-            if (!cache.containsKey(sequence.getID().toString())) {
-                cache.put(sequence.getID().toString(), calculator.getMoveCorrection(sequence));
+        public String getVersion() {
+            return calculator.getVersion();
+        }
+
+        @Override
+        public MoveCorrection getMoveCorrection(final CAGSequence sequence) {
+            SequenceIdentifier id = sequence.getID();
+            Entry entry = cache.get(id);
+            if (entry != null && maxAge > 0
+                    && System.currentTimeMillis() - entry.created > maxAge
+                    && entry.task.isDone()) {
+                if (cache.remove(id, entry))
+                    countEviction();
+                entry = null;
+            }
+
+            boolean owner = false;
+            if (entry == null) {
+                Entry created = new Entry(new FutureTask<MoveCorrection>(
+                        new Callable<MoveCorrection>() {
+                            @Override
+                            public MoveCorrection call() {
+                                return calculator.getMoveCorrection(sequence);
+                            }
+                        }));
+                entry = cache.putIfAbsent(id, created);
+                if (entry == null) {
+                    entry = created;
+                    owner = true;
+                }
+            }
+
+            if (owner) {
+                long start = System.nanoTime();
+                entry.task.run();
+                synchronized (this) {
+                    misses++;
+                    computeNanos += System.nanoTime() - start;
+                }
+                evict();
+            } else {
+                synchronized (this) {
+                    hits++;
+                }
             }
-            return cache.get(sequence.getID().toString());
+            entry.lastUsed = System.currentTimeMillis();
+
+            try {
+                return entry.task.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            } catch (ExecutionException ee) {
+                // Do not remember failures, so that the next call tries again.
+                cache.remove(id, entry);
+                if (ee.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ee.getCause();
+                if (ee.getCause() instanceof Error)
+                    throw (Error) ee.getCause();
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+
+        /**
+         * Remove the least recently used finished results until at most
+         * maxEntries are left.
+         */
+        private void evict() {
+            while (cache.size() > maxEntries) {
+                Map.Entry<SequenceIdentifier, Entry> oldest = null;
+                for (Map.Entry<SequenceIdentifier, Entry> e : cache.entrySet()) {
+                    Entry value = e.getValue();
+                    if (value.task.isDone()
+                            && (oldest == null || value.lastUsed < oldest.getValue().lastUsed))
+                        oldest = e;
+                }
+                if (oldest == null)
+                    return;
+                if (cache.remove(oldest.getKey(), oldest.getValue()))
+                    countEviction();
+            }
+        }
+
+        private synchronized void countEviction() {
+            evictions++;
+        }
+
+        /**
+         * Forget the result for a sequence.
+         */
+        public void invalidate(SequenceIdentifier id) {
+            cache.remove(id);
+        }
+
+        /**
+         * @return the number of calls that did not have to calculate a result
+         */
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of calls that calculated a result
+         */
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of results that were removed from the cache
+         */
+        public synchronized long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return the total time in ms spent calculating results
+         */
+        public synchronized long getComputeTime() {
+            return computeNanos / 1000000;
+        }
+
+        /**
+         * @return the number of results in the cache
+         */
+        public int size() {
+            return cache.size();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("CachingMoveCalculator[%d entries, %d hits, %d misses, "
+                    + "%d evictions, %d ms computing]", cache.size(), hits, misses, evictions,
+                    computeNanos / 1000000);
         }
     }
 }
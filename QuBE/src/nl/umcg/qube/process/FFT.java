@@ -0,0 +1,110 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+/**
+ * In-place radix-2 fast Fourier transforms on separate arrays of real and
+ * imaginary parts.
+ * 
+ * @author mathijs
+ */
+public class FFT {
+
+    /**
+     * Transform a one-dimensional signal.
+     * 
+     * @param re
+     *            The real parts; the length must be a power of 2
+     * @param im
+     *            The imaginary parts
+     * @param off
+     *            The index of the first element
+     * @param stride
+     *            The distance between elements
+     * @param n
+     *            The number of elements
+     * @param inverse
+     *            Whether to do the inverse transform (which is not scaled by
+     *            1/n)
+     */
+    public static void transform(double[] re, double[] im, int off, int stride, int n,
+            boolean inverse) {
+        if (Integer.bitCount(n) != 1)
+            throw new IllegalArgumentException("n must be a power of 2");
+
+        // Bit reversal permutation.
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j |= bit;
+            if (i < j) {
+                int a = off + i * stride, b = off + j * stride;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+
+        for (int len = 2; len <= n; len <<= 1) {
+            double ang = 2 * Math.PI / len * (inverse ? 1 : -1);
+            double wre = Math.cos(ang), wim = Math.sin(ang);
+            for (int i = 0; i < n; i += len) {
+                double cre = 1, cim = 0;
+                for (int j = 0; j < len / 2; j++) {
+                    int a = off + (i + j) * stride, b = off + (i + j + len / 2) * stride;
+                    double vre = re[b] * cre - im[b] * cim;
+                    double vim = re[b] * cim + im[b] * cre;
+                    re[b] = re[a] - vre;
+                    im[b] = im[a] - vim;
+                    re[a] += vre;
+                    im[a] += vim;
+                    double t = cre * wre - cim * wim;
+                    cim = cre * wim + cim * wre;
+                    cre = t;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transform a two-dimensional row-major signal.
+     * 
+     * @param re
+     *            The real parts
+     * @param im
+     *            The imaginary parts
+     * @param width
+     *            The width; must be a power of 2
+     * @param height
+     *            The height; must be a power of 2
+     * @param inverse
+     *            Whether to do the inverse transform (which is not scaled)
+     */
+    public static void transform2D(double[] re, double[] im, int width, int height,
+            boolean inverse) {
+        for (int y = 0; y < height; y++)
+            transform(re, im, y * width, 1, width, inverse);
+        for (int x = 0; x < width; x++)
+            transform(re, im, x, width, height, inverse);
+    }
+}
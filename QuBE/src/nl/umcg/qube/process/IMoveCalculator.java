@@ -27,4 +27,11 @@ import nl.umcg.qube.model.MoveCorrection;
  */
 public interface IMoveCalculator {
     public MoveCorrection getMoveCorrection(CAGSequence sequence);
+
+    /**
+     * Return the version of the results of this calculator. It changes
+     * whenever the calculator starts giving different results, so that stored
+     * results of an older version are not used.
+     */
+    public String getVersion();
 }
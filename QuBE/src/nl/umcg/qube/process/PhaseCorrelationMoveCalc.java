@@ -0,0 +1,261 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+import java.util.Arrays;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.MoveCorrection;
+
+/**
+ * Correct for movement in a CAGSequence with phase correlation. The middle
+ * part of every frame is windowed and Fourier transformed once. The shift
+ * between two frames is the peak of the inverse transform of their normalized
+ * cross-power spectrum, so the cost does not depend on how large the shift can
+ * be.
+ * 
+ * Like {@link BinaryMoveCalc}, every frame is compared to the frames 1, 2, 4,
+ * ... 32 frames before it to prevent drift. The spectra of those comparisons
+ * are moved by the already known shifts of the older frames and added up
+ * before the peak is searched for.
+ * 
+ * Older frames that have panned more than MAX_RANGE pixels away are left
+ * out. Only peaks within MAX_RANGE pixels are considered. Periodic structures and
+ * structures that do not move with the patient give peaks at wrong shifts, so
+ * the highest PEAKS peaks, together with the shift of the previous frame, are
+ * scored with the capped sum of squared differences of BinaryMoveCalc, and the
+ * one with the lowest score wins.
+ * 
+ * @author mathijs
+ */
+public class PhaseCorrelationMoveCalc implements IMoveCalculator {
+    /** Change this whenever the results of this calculator change */
+    private static final String VERSION = "3";
+    /** The number of older frames that can be compared to (1, 2, 4, ... 32) */
+    private static final int MAX_OFFSET = 32;
+    /** The largest shift between subsequent frames that is searched for */
+    private static final int MAX_RANGE = 40;
+    /** The number of peaks that are scored */
+    private static final int PEAKS = 4;
+
+    /**
+     * The Fourier transform of the windowed middle part of a frame.
+     */
+    protected static class Spectrum {
+        final double[] re, im;
+
+        Spectrum(double[] re, double[] im) {
+            this.re = re;
+            this.im = im;
+        }
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public MoveCorrection getMoveCorrection(CAGSequence sequence) {
+        int n = sequence.frameCount();
+        int[] dx = new int[n], dy = new int[n];
+
+        // The middle part is the largest power of 2 that fits in half of the
+        // frame, so 256x256 for 512x512 frames.
+        int size = Integer.highestOneBit(Math.max(2, Math.min(sequence.getWidth(), sequence
+                .getHeight()) / 2));
+        int x0 = (sequence.getWidth() - size) / 2, y0 = (sequence.getHeight() - size) / 2;
+        double[] window = hann(size);
+
+        Spectrum[] spectra = new Spectrum[n];
+        double[] re = new double[size * size], im = new double[size * size];
+        int tx = 0, ty = 0;
+        for (int i = 1; i < n; i++) {
+            Spectrum cur = getSpectrum(sequence, spectra, i, x0, y0, size, window);
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+
+            // Older frames that have panned more than MAX_RANGE away from
+            // the previous frame hardly overlap the middle part any more, so
+            // they are left out.
+            int cnt = 0, most = Integer.numberOfTrailingZeros(MAX_OFFSET) + 1;
+            CAGFrame[] prevFrames = new CAGFrame[most];
+            int[] odx = new int[most], ody = new int[most];
+            for (int offset = 1; i >= offset && offset <= MAX_OFFSET; offset *= 2) {
+                int ox = dx[i - offset] - dx[i - 1], oy = dy[i - offset] - dy[i - 1];
+                if (Math.abs(ox) > MAX_RANGE || Math.abs(oy) > MAX_RANGE)
+                    continue;
+                Spectrum prev = getSpectrum(sequence, spectra, i - offset, x0, y0, size, window);
+                addCrossPower(cur, prev, ox, oy, size, re, im);
+                prevFrames[cnt] = sequence.getFrame(i - offset);
+                odx[cnt] = ox;
+                ody[cnt] = oy;
+                cnt++;
+            }
+            prevFrames = Arrays.copyOf(prevFrames, cnt);
+            FFT.transform2D(re, im, size, size, true);
+
+            // A peak is at the shift (tx, ty) for which frame i at (x, y)
+            // matches frame i - 1 at (x + tx, y + ty). The shift of the
+            // previous frame is tried first, so it wins ties.
+            int[] candidates = peaks(re, size, Math.min(MAX_RANGE, size / 2 - 1));
+            CAGFrame frame = sequence.getFrame(i);
+            long bestScore = BinaryMoveCalc.score(frame, prevFrames, odx, ody, tx, ty,
+                    Long.MAX_VALUE);
+            for (int c = 0; c < candidates.length; c += 2) {
+                long score = BinaryMoveCalc.score(frame, prevFrames, odx, ody, candidates[c],
+                        candidates[c + 1], bestScore);
+                if (score < bestScore) {
+                    bestScore = score;
+                    tx = candidates[c];
+                    ty = candidates[c + 1];
+                }
+            }
+
+            dx[i] = dx[i - 1] - tx;
+            dy[i] = dy[i - 1] - ty;
+
+            // Spectra of frames that will not be compared to anymore can go.
+            if (i - MAX_OFFSET >= 0)
+                spectra[i - MAX_OFFSET] = null;
+        }
+
+        int adjx = dx[n / 2], adjy = dy[n / 2];
+        for (int i = 0; i < n; i++) {
+            dx[i] -= adjx;
+            dy[i] -= adjy;
+        }
+
+        return new MoveCorrection(dx, dy);
+    }
+
+    /**
+     * Find the highest PEAKS local maxima of a correlation surface within a
+     * range of shifts.
+     * 
+     * @return The shifts of the peaks, as tx, ty pairs, highest first
+     */
+    protected static int[] peaks(double[] surface, int size, int range) {
+        int[] shifts = new int[2 * PEAKS];
+        double[] heights = new double[PEAKS];
+        int found = 0;
+        for (int ty = -range; ty <= range; ty++)
+            for (int tx = -range; tx <= range; tx++) {
+                double v = at(surface, size, tx, ty);
+                boolean max = true;
+                for (int ny = -1; ny <= 1 && max; ny++)
+                    for (int nx = -1; nx <= 1 && max; nx++)
+                        if ((nx != 0 || ny != 0) && at(surface, size, tx + nx, ty + ny) > v)
+                            max = false;
+                if (!max || (found == PEAKS && v <= heights[PEAKS - 1]))
+                    continue;
+                // Insert the peak in order of height.
+                int k = Math.min(found, PEAKS - 1);
+                while (k > 0 && heights[k - 1] < v) {
+                    heights[k] = heights[k - 1];
+                    shifts[2 * k] = shifts[2 * k - 2];
+                    shifts[2 * k + 1] = shifts[2 * k - 1];
+                    k--;
+                }
+                heights[k] = v;
+                shifts[2 * k] = tx;
+                shifts[2 * k + 1] = ty;
+                found = Math.min(found + 1, PEAKS);
+            }
+        return Arrays.copyOf(shifts, 2 * found);
+    }
+
+    /**
+     * Return the value of a correlation surface at a shift, which wraps around.
+     */
+    private static double at(double[] surface, int size, int tx, int ty) {
+        return surface[((ty + size) % size) * size + (tx + size) % size];
+    }
+
+    /**
+     * Add the normalized cross-power spectrum of prev and cur to (re, im),
+     * moved such that its peak is at the shift relative to the previous frame
+     * instead of relative to prev.
+     * 
+     * @param odx
+     *            The x offset of prev relative to the previous frame
+     * @param ody
+     *            The y offset of prev relative to the previous frame
+     */
+    protected static void addCrossPower(Spectrum cur, Spectrum prev, int odx, int ody, int size,
+            double[] re, double[] im) {
+        int cutoff = size / 4;
+        for (int v = 0; v < size; v++)
+            for (int u = 0; u < size; u++) {
+                int fu = u < size / 2 ? u : size - u, fv = v < size / 2 ? v : size - v;
+                if (fu * fu + fv * fv > cutoff * cutoff)
+                    continue;
+                int k = v * size + u;
+                // prev * conj(cur)
+                double cre = prev.re[k] * cur.re[k] + prev.im[k] * cur.im[k];
+                double cim = prev.im[k] * cur.re[k] - prev.re[k] * cur.im[k];
+                double mag = Math.sqrt(cre * cre + cim * cim);
+                if (mag < 1e-9)
+                    continue;
+                cre /= mag;
+                cim /= mag;
+                double ang = 2 * Math.PI * ((double) u * odx + (double) v * ody) / size;
+                double sre = Math.cos(ang), sim = Math.sin(ang);
+                re[k] += cre * sre - cim * sim;
+                im[k] += cre * sim + cim * sre;
+            }
+    }
+
+    /**
+     * Return the spectrum of frame i, calculating it when it is not there.
+     */
+    protected Spectrum getSpectrum(CAGSequence sequence, Spectrum[] spectra, int i, int x0,
+            int y0, int size, double[] window) {
+        if (spectra[i] == null) {
+            CAGFrame frame = sequence.getFrame(i);
+            double[] re = new double[size * size], im = new double[size * size];
+            double mean = 0;
+            for (int y = 0; y < size; y++) {
+                int row = frame.getRowOffset(y0 + y) + x0;
+                for (int x = 0; x < size; x++) {
+                    re[y * size + x] = frame.getUnsigned(row + x);
+                    mean += re[y * size + x];
+                }
+            }
+            mean /= size * size;
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                    re[y * size + x] = (re[y * size + x] - mean) * window[x] * window[y];
+            FFT.transform2D(re, im, size, size, false);
+            spectra[i] = new Spectrum(re, im);
+        }
+        return spectra[i];
+    }
+
+    /**
+     * @return a Hann window of the given size
+     */
+    private static double[] hann(int size) {
+        double[] w = new double[size];
+        for (int i = 0; i < size; i++)
+            w[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1));
+        return w;
+    }
+}
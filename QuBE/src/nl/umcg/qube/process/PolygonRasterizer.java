@@ -20,83 +20,234 @@ package nl.umcg.qube.process;
 
 import java.awt.Point;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 
 import nl.umcg.qube.model.Polygon;
 
 /**
- * @author mathijs
+ * Rasterizes polygons into horizontal spans of pixels with an active edge
+ * table. A PolygonRasterizer keeps its buffers between calls, so rasterizing
+ * with the same instance again does not allocate once the buffers are large
+ * enough. An instance must not be used by several threads at once.
  * 
+ * @author mathijs
  */
 public class PolygonRasterizer {
+    // Edges, with (x0, y0) the upper point, sorted on y0.
+    private int edgeCount;
+    private int[] ex0 = new int[16], ey0 = new int[16], ex1 = new int[16], ey1 = new int[16];
+    // Indices of the edges crossing the current line, and their crossings.
+    private int[] active = new int[16];
+    private double[] crossings = new double[16];
+
+    private int spanCount;
+    private int[] spanY = new int[64], spanX0 = new int[64], spanX1 = new int[64];
+
+    private int blockCount;
+    private int[] blockX = new int[64], blockY = new int[64];
+    private boolean[] occupied = new boolean[256];
+
     /**
-     * Rasterize an arbitrary polygon into points
+     * Rasterize a polygon into spans. A point is in the polygon under the same
+     * rules as {@link #rasterize(Polygon)} uses.
      * 
      * @param poly
-     *            The polygon to be processed
-     * @return A list of all points in the polygon
+     *            The polygon
+     * @return The number of spans
      */
-    public static ArrayList<Point> rasterize(Polygon poly) {
-        // The current algorithm scans for all y-values in the polygon
-        // for all horizontal y-lines it then determines where each line
-        // of the polygon intersects this horizontal line
-        // When we then scan the list of intersections from left to right,
-        // we are in the polygon when we have seen an odd number of
-        // intersections and out of the poly when we've seen an even number.
-        // care must be taken with the ending points of lines, horizontal lines,
-        // etc.
-
-        // TODO alternative algorithm: using
-        // a scanning approach and active edge list
-        ArrayList<Point> result = new ArrayList<Point>();
+    public int scan(Polygon poly) {
+        int n = poly.pointCount();
+        if (ex0.length < n) {
+            ex0 = new int[n];
+            ey0 = new int[n];
+            ex1 = new int[n];
+            ey1 = new int[n];
+            active = new int[n];
+            crossings = new double[n];
+        }
+
+        // Build the edge table, skipping horizontal edges.
+        edgeCount = 0;
+        for (int idx = 0; idx < n; idx++) {
+            Point p1 = poly.getPoint(idx), p2 = poly.getPoint((idx + 1) % n);
+            if (p1.y == p2.y)
+                continue;
+            if (p1.y > p2.y) {
+                Point temp = p1;
+                p1 = p2;
+                p2 = temp;
+            }
+            // Insertion sort on the upper y.
+            int e = edgeCount++;
+            while (e > 0 && ey0[e - 1] > p1.y) {
+                ex0[e] = ex0[e - 1];
+                ey0[e] = ey0[e - 1];
+                ex1[e] = ex1[e - 1];
+                ey1[e] = ey1[e - 1];
+                e--;
+            }
+            ex0[e] = p1.x;
+            ey0[e] = p1.y;
+            ex1[e] = p2.x;
+            ey1[e] = p2.y;
+        }
 
-        int miny = poly.getMinY();
+        spanCount = 0;
+        int activeCount = 0, next = 0;
         int maxy = poly.getMaxY();
+        for (int y = poly.getMinY(); y <= maxy; y++) {
+            // Edges cover the lines y0 <= y < y1.
+            while (next < edgeCount && ey0[next] <= y)
+                active[activeCount++] = next++;
+            int kept = 0;
+            for (int k = 0; k < activeCount; k++)
+                if (y < ey1[active[k]])
+                    active[kept++] = active[k];
+            activeCount = kept;
 
-        for (int y = miny; y <= maxy; y++) {
-            ArrayList<Double> xCoords = new ArrayList<Double>();
-
-            for (int idx = 0; idx < poly.pointCount(); idx++) {
-                Point p1 = poly.getPoint(idx), p2 = poly.getPoint((idx + 1) % poly.pointCount());
-                // skip horizontal lines
-                if (p1.y == p2.y)
-                    continue;
-                // p2 should be lower point
-                if (p1.y > p2.y) {
-                    Point temp = p1;
-                    p1 = p2;
-                    p2 = temp;
+            // Intersect the line with the active edges and sort the
+            // intersections.
+            for (int k = 0; k < activeCount; k++) {
+                int e = active[k];
+                double x = ex0[e] + (ex1[e] - ex0[e]) * (y - (double) ey0[e]) / (ey1[e] - ey0[e]);
+                int j = k;
+                while (j > 0 && crossings[j - 1] > x) {
+                    crossings[j] = crossings[j - 1];
+                    j--;
                 }
+                crossings[j] = x;
+            }
 
-                if (y < p1.y || y >= p2.y)
-                    continue; // y not within this line
+            if (activeCount % 2 != 0)
+                throw new IllegalArgumentException("Degenerate polygon?");
 
-                double x = p1.x + (p2.x - p1.x) * (y - (double) p1.y) / (p2.y - p1.y);
-                xCoords.add(x);
+            // Pixels from the first intersection up to and including the
+            // second are inside; every following pair encloses the pixels
+            // after its first intersection up to and including the second.
+            for (int k = 0; k < activeCount; k += 2) {
+                int x0 = (int) Math.round(crossings[k]);
+                int x1 = (int) Math.round(crossings[k + 1]);
+                if (k > 0)
+                    x0++;
+                if (x0 <= x1)
+                    addSpan(y, x0, x1);
             }
+        }
+        return spanCount;
+    }
 
-            Collections.sort(xCoords);
+    private void addSpan(int y, int x0, int x1) {
+        if (spanCount == spanY.length) {
+            spanY = Arrays.copyOf(spanY, spanCount * 2);
+            spanX0 = Arrays.copyOf(spanX0, spanCount * 2);
+            spanX1 = Arrays.copyOf(spanX1, spanCount * 2);
+        }
+        spanY[spanCount] = y;
+        spanX0[spanCount] = x0;
+        spanX1[spanCount] = x1;
+        spanCount++;
+    }
 
-            if (xCoords.size() % 2 != 0)
-                throw new IllegalArgumentException("Degenerate polygon?");
+    public int getSpanCount() {
+        return spanCount;
+    }
 
-            if (xCoords.size() != 0) {
-                int x = (int) Math.round(xCoords.get(0));
-                boolean draw = true;
-                int idx = 1;
-                while (idx < xCoords.size()) {
-                    while (idx < xCoords.size() && x > Math.round(xCoords.get(idx))) {
-                        draw = !draw;
-                        idx++;
-                    }
-                    if (draw) {
-                        result.add(new Point(x, y));
+    /**
+     * @return the row of span i
+     */
+    public int getSpanY(int i) {
+        return spanY[i];
+    }
+
+    /**
+     * @return the first pixel of span i
+     */
+    public int getSpanX0(int i) {
+        return spanX0[i];
+    }
+
+    /**
+     * @return the last pixel of span i (inclusive)
+     */
+    public int getSpanX1(int i) {
+        return spanX1[i];
+    }
+
+    /**
+     * Find the blocks of blockSize x blockSize pixels that contain at least one
+     * pixel of the spans of the last scan. A pixel (x, y) is in the block with
+     * top left corner ((x / blockSize) * blockSize, (y / blockSize) *
+     * blockSize). The blocks are ordered by y and then x.
+     * 
+     * @param blockSize
+     *            The size of the blocks
+     * @return The number of blocks
+     */
+    public int findBlocks(int blockSize) {
+        blockCount = 0;
+        if (spanCount == 0)
+            return 0;
+
+        int minbx = Integer.MAX_VALUE, maxbx = Integer.MIN_VALUE;
+        for (int i = 0; i < spanCount; i++) {
+            minbx = Math.min(minbx, spanX0[i] / blockSize);
+            maxbx = Math.max(maxbx, spanX1[i] / blockSize);
+        }
+        int minby = spanY[0] / blockSize, maxby = spanY[spanCount - 1] / blockSize;
+        int cols = maxbx - minbx + 1, rows = maxby - minby + 1;
+        if (occupied.length < cols * rows)
+            occupied = new boolean[cols * rows];
+        else
+            Arrays.fill(occupied, 0, cols * rows, false);
+
+        for (int i = 0; i < spanCount; i++) {
+            int row = (spanY[i] / blockSize - minby) * cols - minbx;
+            for (int bx = spanX0[i] / blockSize; bx <= spanX1[i] / blockSize; bx++)
+                occupied[row + bx] = true;
+        }
+
+        for (int by = 0; by < rows; by++)
+            for (int bx = 0; bx < cols; bx++)
+                if (occupied[by * cols + bx]) {
+                    if (blockCount == blockX.length) {
+                        blockX = Arrays.copyOf(blockX, blockCount * 2);
+                        blockY = Arrays.copyOf(blockY, blockCount * 2);
                     }
-                    x++;
+                    blockX[blockCount] = (bx + minbx) * blockSize;
+                    blockY[blockCount] = (by + minby) * blockSize;
+                    blockCount++;
                 }
-            }
-        }
+        return blockCount;
+    }
+
+    /**
+     * @return the x coordinate of the top left corner of block i
+     */
+    public int getBlockX(int i) {
+        return blockX[i];
+    }
+
+    /**
+     * @return the y coordinate of the top left corner of block i
+     */
+    public int getBlockY(int i) {
+        return blockY[i];
+    }
 
+    /**
+     * Rasterize an arbitrary polygon into points
+     * 
+     * @param poly
+     *            The polygon to be processed
+     * @return A list of all points in the polygon
+     */
+    public static ArrayList<Point> rasterize(Polygon poly) {
+        PolygonRasterizer rasterizer = new PolygonRasterizer();
+        rasterizer.scan(poly);
+        ArrayList<Point> result = new ArrayList<Point>();
+        for (int i = 0; i < rasterizer.spanCount; i++)
+            for (int x = rasterizer.spanX0[i]; x <= rasterizer.spanX1[i]; x++)
+                result.add(new Point(x, rasterizer.spanY[i]));
         return result;
     }
 }
@@ -0,0 +1,332 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+import java.util.Arrays;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.MoveCorrection;
+
+/**
+ * A fast correction for movement in a CAGSequence, meant to show move
+ * corrected frames while a more precise calculator is still busy.
+ * RegressionSuite checks that it handles 125 frames of 512 x 512 pixels within
+ * 100 ms on one thread.
+ * 
+ * Only the middle of every frame plus a margin of MARGIN pixels is kept, with
+ * every pixel averaged over 2 x 2 pixels. The shift from the previous frame is
+ * first guessed from the column and row profiles of this part. Profiles
+ * change when the frame moves perpendicular to them, and structures that do
+ * not move give peaks of their own, so the best PEAKS peaks of both profiles
+ * are combined. Those peaks can all be wrong, so shifts STEP pixels apart are
+ * tried as well, against the previous frame only. Starting from the
+ * combination, the best of those shifts or the shift of the previous frame,
+ * whichever fits best, the shift is then improved one pixel at a time with
+ * the capped sum of squared differences to the same older frames as
+ * {@link BinaryMoveCalc} uses (1, 2, 4, ... 32 frames back), on a grid of
+ * GRID pixels. The older frames keep the errors from adding up, and the
+ * averaging keeps the sparse grid from following the noise.
+ * 
+ * @author mathijs
+ */
+public class ProjectionMoveCalc implements IMoveCalculator {
+    /** Change this whenever the results of this calculator change */
+    private static final String VERSION = "3";
+    /** The largest shift between subsequent frames that is searched for */
+    private static final int RANGE = 20;
+    /** The number of older frames that can be compared to (1, 2, 4, ... 32) */
+    private static final int MAX_OFFSET = 32;
+    /**
+     * The part outside the middle of the frame that is kept: room for the
+     * shift of the frame itself and for the older frames it is compared to
+     */
+    private static final int MARGIN = 2 * RANGE;
+    /** The distance between the pixels compared in the 2D check */
+    private static final int GRID = 8;
+    /** The number of peaks of every profile match that are tried */
+    private static final int PEAKS = 3;
+    /** The distance between the shifts tried against the previous frame only */
+    private static final int STEP = 4;
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public MoveCorrection getMoveCorrection(CAGSequence sequence) {
+        int n = sequence.frameCount();
+        int width = sequence.getWidth(), height = sequence.getHeight();
+        int x0 = width / 4 - MARGIN, y0 = height / 4 - MARGIN;
+        int cw = width * 3 / 4 + MARGIN - x0, ch = height * 3 / 4 + MARGIN - y0;
+
+        // Only the frames that can still be compared to are kept.
+        byte[][] parts = new byte[MAX_OFFSET + 1][cw * ch];
+        int[][] cols = new int[n][cw], rows = new int[n][ch];
+        byte[] row = new byte[width];
+        int[] pairs = new int[cw];
+
+        int[] dx = new int[n], dy = new int[n];
+        int most = Integer.numberOfTrailingZeros(MAX_OFFSET) + 1;
+        byte[][] prevParts = new byte[most][];
+        int[] odx = new int[most], ody = new int[most];
+        int bx = 0, by = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] part = parts[i % parts.length];
+            smooth(sequence.getFrame(i), x0, y0, cw, ch, part, row, pairs);
+            profiles(part, cw, ch, cols[i], rows[i]);
+            if (i == 0)
+                continue;
+
+            // Older frames that have panned more than RANGE away from the
+            // previous frame hardly overlap it any more, so they are left out.
+            int cnt = 0;
+            for (int offset = 1; i >= offset && offset <= MAX_OFFSET; offset *= 2) {
+                if (Math.abs(dx[i - offset] - dx[i - 1]) > RANGE
+                        || Math.abs(dy[i - offset] - dy[i - 1]) > RANGE)
+                    continue;
+                prevParts[cnt] = parts[(i - offset) % parts.length];
+                odx[cnt] = dx[i - offset] - dx[i - 1];
+                ody[cnt] = dy[i - offset] - dy[i - 1];
+                cnt++;
+            }
+            int[] xs = peaks(cols[i], cols[i - 1]);
+            int[] ys = peaks(rows[i], rows[i - 1]);
+
+            // The peaks can all miss the shift, when structures that do not
+            // move dominate the profiles. Every STEP pixels, the shift is
+            // also tried against the previous frame (the first part) only, on
+            // a grid twice as coarse.
+            long score, coarseScore = Long.MAX_VALUE;
+            int sx = 0, sy = 0;
+            for (int x = -RANGE; x <= RANGE; x += STEP)
+                for (int y = -RANGE; y <= RANGE; y += STEP) {
+                    score = score(part, prevParts, odx, ody, 1, cw, ch, 2 * GRID, x, y,
+                            coarseScore);
+                    if (score < coarseScore) {
+                        coarseScore = score;
+                        sx = x;
+                        sy = y;
+                    }
+                }
+
+            // Start from the shift of the previous frame, the best of those
+            // shifts or the combination of profile peaks that scores best, and
+            // walk downhill from there. The shift of the previous frame is
+            // tried first, so it wins ties.
+            long bestScore = score(part, prevParts, odx, ody, cnt, cw, ch, GRID, bx, by,
+                    Long.MAX_VALUE);
+            int px = bx, py = by;
+            score = score(part, prevParts, odx, ody, cnt, cw, ch, GRID, sx, sy, bestScore);
+            if (score < bestScore) {
+                bestScore = score;
+                px = sx;
+                py = sy;
+            }
+            for (int tx : xs)
+                for (int ty : ys) {
+                    score = score(part, prevParts, odx, ody, cnt, cw, ch, GRID, tx, ty,
+                            bestScore);
+                    if (score < bestScore) {
+                        bestScore = score;
+                        px = tx;
+                        py = ty;
+                    }
+                }
+            bx = px;
+            by = py;
+            for (int steps = 0; steps < RANGE; steps++) {
+                int cx = bx, cy = by;
+                for (int x = cx - 1; x <= cx + 1; x++)
+                    for (int y = cy - 1; y <= cy + 1; y++) {
+                        if ((x == cx && y == cy) || Math.abs(x) > RANGE || Math.abs(y) > RANGE)
+                            continue;
+                        score = score(part, prevParts, odx, ody, cnt, cw, ch, GRID, x, y,
+                                bestScore);
+                        if (score < bestScore) {
+                            bestScore = score;
+                            bx = x;
+                            by = y;
+                        }
+                    }
+                if (bx == cx && by == cy)
+                    break;
+            }
+
+            dx[i] = dx[i - 1] - bx;
+            dy[i] = dy[i - 1] - by;
+        }
+
+        int adjx = dx[n / 2], adjy = dy[n / 2];
+        for (int i = 0; i < n; i++) {
+            dx[i] -= adjx;
+            dy[i] -= adjy;
+        }
+
+        return new MoveCorrection(dx, dy);
+    }
+
+    /**
+     * Copy the part of a frame that starts at (x0, y0) and is cw x ch pixels
+     * into part, every pixel averaged with the pixels to the right, below and
+     * below right of it. Pixels outside the frame are taken from its border.
+     * 
+     * @param row
+     *            Room for one row of the frame
+     * @param pairs
+     *            Room for the sums of cw pairs of horizontally adjacent pixels
+     */
+    protected static void smooth(CAGFrame frame, int x0, int y0, int cw, int ch, byte[] part,
+            byte[] row, int[] pairs) {
+        int width = frame.getWidth(), height = frame.getHeight();
+        boolean inside = x0 >= 0 && x0 + cw < width;
+        for (int y = 0; y <= ch; y++) {
+            frame.getRow(clamp(y0 + y, height), row);
+            int out = (y - 1) * cw;
+            for (int x = 0; x < cw; x++) {
+                int pair = inside ? (row[x0 + x] & 0xFF) + (row[x0 + x + 1] & 0xFF)
+                        : (row[clamp(x0 + x, width)] & 0xFF)
+                                + (row[clamp(x0 + x + 1, width)] & 0xFF);
+                if (y > 0)
+                    part[out + x] = (byte) ((pairs[x] + pair) / 4);
+                pairs[x] = pair;
+            }
+        }
+    }
+
+    /**
+     * Calculate the column profile (the sum of every column over the middle
+     * rows) and the row profile (the sum of every row over the middle
+     * columns) of a part of a frame that is cw x ch pixels.
+     */
+    protected static void profiles(byte[] part, int cw, int ch, int[] cols, int[] rows) {
+        for (int y = 0; y < ch; y++) {
+            int o = y * cw;
+            int sum = 0;
+            for (int x = MARGIN; x < cw - MARGIN; x++)
+                sum += part[o + x] & 0xFF;
+            rows[y] = sum;
+            if (y >= MARGIN && y < ch - MARGIN)
+                for (int x = 0; x < cw; x++)
+                    cols[x] += part[o + x] & 0xFF;
+        }
+    }
+
+    /**
+     * Calculate the capped sum of squared differences between the middle of a
+     * part of a frame and the parts of the first cnt older frames shifted by
+     * (tx, ty) plus their own offsets, on a grid of grid pixels. Samples that
+     * fall outside the older parts are taken from their border. Stops as soon
+     * as the score exceeds bound and returns Long.MAX_VALUE.
+     */
+    protected static long score(byte[] part, byte[][] prevParts, int[] odx, int[] ody, int cnt,
+            int cw, int ch, int grid, int tx, int ty, long bound) {
+        long score = 0;
+        for (int k = 0; k < cnt; k++) {
+            byte[] prev = prevParts[k];
+            int tx2 = tx + odx[k], ty2 = ty + ody[k];
+            boolean inside = Math.abs(tx2) <= MARGIN && Math.abs(ty2) <= MARGIN;
+            for (int y = MARGIN; y < ch - MARGIN; y += grid) {
+                int o = y * cw;
+                int po = (inside ? y + ty2 : clamp(y + ty2, ch)) * cw;
+                for (int x = MARGIN; x < cw - MARGIN; x += grid) {
+                    int px = inside ? x + tx2 : clamp(x + tx2, cw);
+                    int diff = (part[o + x] & 0xFF) - (prev[po + px] & 0xFF);
+                    // Cap the squared difference, like BinaryMoveCalc.
+                    score += Math.min(diff * diff, 100);
+                }
+                if (score > bound)
+                    return Long.MAX_VALUE;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Clamp a coordinate to 0 ... size - 1.
+     */
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    /**
+     * Find the shifts t, at most PEAKS, for which the middle of profile cur at
+     * position p matches profile prev at p + t better than at the
+     * neighbouring shifts.
+     * 
+     * @return The shifts, best match first
+     */
+    protected static int[] peaks(int[] cur, int[] prev) {
+        long sa = 0, saa = 0;
+        for (int p = MARGIN; p < cur.length - MARGIN; p++) {
+            sa += cur[p];
+            saa += (long) cur[p] * cur[p];
+        }
+        double[] scores = new double[2 * RANGE + 1];
+        for (int t = -RANGE; t <= RANGE; t++)
+            scores[t + RANGE] = correlation(cur, sa, saa, prev, t);
+
+        int[] shifts = new int[PEAKS];
+        double[] heights = new double[PEAKS];
+        int found = 0;
+        for (int j = 0; j < scores.length; j++) {
+            double v = scores[j];
+            if ((j > 0 && scores[j - 1] > v) || (j + 1 < scores.length && scores[j + 1] > v)
+                    || (found == PEAKS && v <= heights[PEAKS - 1]))
+                continue;
+            // Insert the peak in order of height.
+            int k = Math.min(found, PEAKS - 1);
+            while (k > 0 && heights[k - 1] < v) {
+                heights[k] = heights[k - 1];
+                shifts[k] = shifts[k - 1];
+                k--;
+            }
+            heights[k] = v;
+            shifts[k] = j - RANGE;
+            found = Math.min(found + 1, PEAKS);
+        }
+        return Arrays.copyOf(shifts, found);
+    }
+
+    /**
+     * Calculate the normalized correlation between the middle of cur, without
+     * the margins, and prev shifted by t. Normalizing makes the comparison
+     * insensitive to the profiles getting brighter or weaker, which happens
+     * when the frame moves perpendicular to the profile.
+     * 
+     * @param sa
+     *            The sum of the middle of cur
+     * @param saa
+     *            The sum of the squares of the middle of cur
+     */
+    protected static double correlation(int[] cur, long sa, long saa, int[] prev, int t) {
+        int len = cur.length, cnt = len - 2 * MARGIN;
+        long sb = 0, sbb = 0, sab = 0;
+        for (int p = MARGIN; p < len - MARGIN; p++) {
+            long b = prev[clamp(p + t, len)];
+            sb += b;
+            sbb += b * b;
+            sab += cur[p] * b;
+        }
+        double cov = sab - (double) sa * sb / cnt;
+        double var = (saa - (double) sa * sa / cnt) * (sbb - (double) sb * sb / cnt);
+        return var > 0 ? cov / Math.sqrt(var) : 0;
+    }
+}
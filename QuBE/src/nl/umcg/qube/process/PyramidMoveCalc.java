@@ -0,0 +1,355 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+import nl.umcg.qube.model.CAGFrame;
+import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.MoveCorrection;
+
+/**
+ * Correct for movement in a CAGSequence in the same way as
+ * {@link BinaryMoveCalc}, but search for the best shift coarse-to-fine instead
+ * of trying every shift at full resolution.
+ * 
+ * The middle part of every frame that is scored, plus a margin for the search
+ * range, is downsampled into a pyramid of images that are each half the size
+ * of the one below. The shift is first searched for in the smallest image.
+ * When the best match lands on the border of the searched range, the range is
+ * doubled and the search is repeated. The result is then refined on every
+ * larger image, around the double of the shift that was found one level up, up
+ * to the full resolution, where the frames themselves are scored with the
+ * score of BinaryMoveCalc. A refinement that lands on the border of its window
+ * moves the window and searches again, so it can still walk to a better shift.
+ * On every level, the score of a shift is abandoned as soon as it is higher
+ * than the best score found so far.
+ * 
+ * A refinement can still stop in a local minimum. At full resolution, the
+ * window is therefore FINE pixels around the shift from the level above, and a
+ * full search of RANGE pixels is done when the best shift is far from that
+ * shift or is not better than every shift FINE pixels around it. That search
+ * covers the range of BinaryMoveCalc, or is centered on the shift from the
+ * level above when that lies outside it. On the synthetic runs with noise up
+ * to 12 grey values, this gives the result of BinaryMoveCalc, but it is not
+ * guaranteed to: a local minimum that is better than the shifts around it can
+ * still win over the best shift, as happens with more noise.
+ * Because of that, it is not offered as a move calculator in QubeMain and
+ * QubeBatch, but only compared to BinaryMoveCalc by the benchmarks.
+ * 
+ * @author mathijs
+ */
+public class PyramidMoveCalc implements IMoveCalculator {
+    /** Change this whenever the results of this calculator change */
+    private static final String VERSION = "3";
+    /** The number of downsampled levels above the full resolution */
+    private static final int LEVELS = 2;
+    /** The search range of BinaryMoveCalc, in full resolution pixels */
+    private static final int RANGE = 10;
+    /** The largest search range to widen to, in full resolution pixels */
+    private static final int MAX_RANGE = 40;
+    /** The distance between sampled pixels at full resolution */
+    private static final int STEP = 4;
+    /** The distance around the shift of the level above searched at full resolution */
+    private static final int FINE = 2;
+    /** The number of older frames that can be compared to (1, 2, 4, ... 32) */
+    private static final int MAX_OFFSET = 32;
+    /** The part of a frame around its middle part kept in the pyramid, in full resolution pixels */
+    private static final int MARGIN = 2 * MAX_RANGE;
+
+    /**
+     * A single level of the pyramid of a frame. Only a part of the frame is
+     * kept; pixels outside it are taken from the nearest pixel of the part.
+     */
+    protected static class Level {
+        final int[] px;
+        /** The size of the whole frame at this level */
+        final int width, height;
+        /** The position and size of the part that is kept */
+        final int x0, y0, w, h;
+
+        Level(int[] px, int width, int height, int x0, int y0, int w, int h) {
+            this.px = px;
+            this.width = width;
+            this.height = height;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.w = w;
+            this.h = h;
+        }
+
+        /**
+         * Return the pixel at (x, y), clamped to the part that is kept.
+         */
+        final int get(int x, int y) {
+            x = x < x0 ? 0 : (x >= x0 + w ? w - 1 : x - x0);
+            y = y < y0 ? 0 : (y >= y0 + h ? h - 1 : y - y0);
+            return px[y * w + x];
+        }
+
+        /**
+         * Return an image half the size of this one, every pixel of which is the
+         * mean of 2x2 pixels of this one.
+         */
+        Level half() {
+            int hw = w / 2, hh = h / 2;
+            int[] res = new int[hw * hh];
+            for (int y = 0; y < hh; y++) {
+                int r1 = 2 * y * w, r2 = r1 + w;
+                for (int x = 0; x < hw; x++)
+                    res[y * hw + x] = (px[r1 + 2 * x] + px[r1 + 2 * x + 1] + px[r2 + 2 * x]
+                            + px[r2 + 2 * x + 1] + 2) / 4;
+            }
+            return new Level(res, width / 2, height / 2, x0 / 2, y0 / 2, hw, hh);
+        }
+    }
+
+    /**
+     * A frame, the previous frames it is compared to, their pyramids and the
+     * shift of each previous frame relative to the frame before this one.
+     */
+    protected static class Match {
+        final CAGFrame frame;
+        final CAGFrame[] prevFrames;
+        final Level[] cur;
+        final Level[][] prev;
+        final int[] odx, ody;
+
+        Match(CAGFrame frame, CAGFrame[] prevFrames, Level[] cur, Level[][] prev, int[] odx,
+                int[] ody) {
+            this.frame = frame;
+            this.prevFrames = prevFrames;
+            this.cur = cur;
+            this.prev = prev;
+            this.odx = odx;
+            this.ody = ody;
+        }
+    }
+
+    @Override
+    public String getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public MoveCorrection getMoveCorrection(CAGSequence sequence) {
+        int n = sequence.frameCount();
+        int[] dx = new int[n], dy = new int[n];
+        Level[][] pyramids = new Level[n][];
+
+        for (int i = 1; i < n; i++) {
+            // Determine the previous frames to compare to, like BinaryMoveCalc.
+            int cnt = 0;
+            for (int offset = 1; i >= offset && offset <= MAX_OFFSET; offset *= 2)
+                cnt++;
+            CAGFrame[] prevFrames = new CAGFrame[cnt];
+            Level[][] prev = new Level[cnt][];
+            int[] odx = new int[cnt], ody = new int[cnt];
+            for (int k = 0, offset = 1; k < cnt; k++, offset *= 2) {
+                prevFrames[k] = sequence.getFrame(i - offset);
+                prev[k] = getPyramid(sequence, pyramids, i - offset);
+                odx[k] = dx[i - offset] - dx[i - 1];
+                ody[k] = dy[i - offset] - dy[i - 1];
+            }
+            Match m = new Match(sequence.getFrame(i), prevFrames, getPyramid(sequence, pyramids,
+                    i), prev, odx, ody);
+
+            // Search the smallest level, widening the range on border hits.
+            int[] best = null;
+            for (int range = RANGE; best == null; range *= 2) {
+                int r = (range + (1 << LEVELS) - 1) >> LEVELS;
+                best = search(m, LEVELS, 0, 0, r, 0);
+                if ((Math.abs(best[0]) == r || Math.abs(best[1]) == r) && range * 2 <= MAX_RANGE)
+                    best = null;
+            }
+
+            // Refine on each larger level.
+            for (int level = LEVELS - 1; level > 0; level--)
+                best = search(m, level, best[0] * 2, best[1] * 2, 1, MAX_RANGE >> level);
+
+            // At full resolution, search a wider window. When its best shift
+            // is far from where the level above pointed, or not clearly the
+            // best of the shifts around it, try every shift in the range of
+            // BinaryMoveCalc instead, or around the shift from the level above
+            // when that is outside the range.
+            int cx = best[0] * 2, cy = best[1] * 2;
+            best = search(m, 0, cx, cy, FINE, MAX_RANGE);
+            if (Math.abs(best[0] - cx) >= FINE || Math.abs(best[1] - cy) >= FINE
+                    || !separated(m, best)) {
+                if (Math.abs(cx) <= RANGE && Math.abs(cy) <= RANGE)
+                    best = search(m, 0, 0, 0, RANGE, 0);
+                else
+                    best = search(m, 0, cx, cy, RANGE, MAX_RANGE);
+            }
+
+            dx[i] = dx[i - 1] - best[0];
+            dy[i] = dy[i - 1] - best[1];
+
+            // Pyramids of frames that will not be compared to anymore can go.
+            if (i - MAX_OFFSET >= 0)
+                pyramids[i - MAX_OFFSET] = null;
+        }
+
+        int adjx = dx[n / 2], adjy = dy[n / 2];
+        for (int i = 0; i < n; i++) {
+            dx[i] -= adjx;
+            dy[i] -= adjy;
+        }
+
+        return new MoveCorrection(dx, dy);
+    }
+
+    /**
+     * Find the shift with the lowest score in a square window on one level of
+     * the pyramid. The middle of the window is tried first, so that the shifts
+     * around it can be abandoned early. Ties are resolved in favour of the
+     * shift that comes first with tx and then ty increasing, like in
+     * BinaryMoveCalc.
+     * 
+     * @param limit
+     *            If larger than 0, the window is moved and searched again when
+     *            the best shift lands on its border, as long as the shift is
+     *            within limit. If 0, the window is searched once.
+     * @return The best shift, in pixels of the level
+     */
+    protected int[] search(Match m, int level, int cx, int cy, int radius, int limit) {
+        int max = Math.max(limit, radius);
+        long bestScore = Long.MAX_VALUE;
+        if (Math.abs(cx) <= max && Math.abs(cy) <= max)
+            bestScore = score(m, level, cx, cy, Long.MAX_VALUE);
+        int bx = cx, by = cy;
+        while (true) {
+            // The middle of the window has been scored already, either above
+            // or as the best shift of the previous window.
+            for (int tx = cx - radius; tx <= cx + radius; tx++)
+                for (int ty = cy - radius; ty <= cy + radius; ty++) {
+                    if (Math.abs(tx) > max || Math.abs(ty) > max || (tx == cx && ty == cy))
+                        continue;
+                    long score = score(m, level, tx, ty, bestScore);
+                    if (score < bestScore
+                            || (score == bestScore && (tx < bx || (tx == bx && ty < by)))) {
+                        bestScore = score;
+                        bx = tx;
+                        by = ty;
+                    }
+                }
+            boolean border = bx == cx - radius || bx == cx + radius || by == cy - radius
+                    || by == cy + radius;
+            if (limit == 0 || !border || (bx == cx && by == cy))
+                break;
+            if (Math.abs(bx) >= limit || Math.abs(by) >= limit)
+                break;
+            cx = bx;
+            cy = by;
+        }
+        return new int[] { bx, by };
+    }
+
+    /**
+     * Check whether every full resolution shift FINE pixels away from best
+     * scores worse than best.
+     */
+    protected boolean separated(Match m, int[] best) {
+        long bestScore = score(m, 0, best[0], best[1], Long.MAX_VALUE);
+        for (int tx = best[0] - FINE; tx <= best[0] + FINE; tx++)
+            for (int ty = best[1] - FINE; ty <= best[1] + FINE; ty++)
+                if (Math.max(Math.abs(tx - best[0]), Math.abs(ty - best[1])) == FINE
+                        && score(m, 0, tx, ty, bestScore) <= bestScore)
+                    return false;
+        return true;
+    }
+
+    /**
+     * Calculate the capped sum of squared differences between the middle part
+     * of the current frame and the previous frames, shifted by (tx, ty). At full
+     * resolution this is the score of BinaryMoveCalc.
+     * 
+     * @param bound
+     *            The score is abandoned once it is higher than this
+     * @return The score, or Long.MAX_VALUE if it was abandoned
+     */
+    protected long score(Match m, int level, int tx, int ty, long bound) {
+        if (level == 0)
+            return BinaryMoveCalc.score(m.frame, m.prevFrames, m.odx, m.ody, tx, ty, bound);
+
+        Level frame = m.cur[level];
+        int step = Math.max(1, STEP >> level);
+        int x0 = frame.width / 4, x1 = frame.width * 3 / 4;
+        int y0 = frame.height / 4, y1 = frame.height * 3 / 4;
+        long score = 0;
+        for (int k = 0; k < m.prev.length; k++) {
+            Level pp = m.prev[k][level];
+            int tx2 = tx + scale(m.odx[k], level), ty2 = ty + scale(m.ody[k], level);
+            for (int y = y0; y < y1; y += step) {
+                int row = (y - frame.y0) * frame.w - frame.x0;
+                for (int x = x0; x < x1; x += step) {
+                    int diff = frame.px[row + x] - pp.get(x + tx2, y + ty2);
+                    int scInc = diff * diff;
+                    // Cap the maximum squared difference to mitigate the
+                    // effect of outliers somewhat.
+                    if (scInc > 100)
+                        scInc = 100;
+                    score += scInc;
+                }
+                // The score only grows, so this shift cannot win anymore.
+                if (score > bound)
+                    return Long.MAX_VALUE;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Convert a full resolution distance to the pixels of a level.
+     */
+    private static int scale(int d, int level) {
+        return (int) Math.round(d / (double) (1 << level));
+    }
+
+    /**
+     * Return the pyramid of frame i, calculating it when it is not there. The
+     * full resolution is scored on the frame itself, so the first level is
+     * left empty.
+     */
+    protected Level[] getPyramid(CAGSequence sequence, Level[][] pyramids, int i) {
+        if (pyramids[i] == null) {
+            CAGFrame frame = sequence.getFrame(i);
+            int fw = frame.getWidth(), fh = frame.getHeight();
+
+            // Keep the middle part plus the margin, aligned so that every level
+            // has the same pixels as the pyramid of the whole frame.
+            int align = ~((1 << LEVELS) - 1);
+            int x0 = Math.max(0, (fw / 4 - MARGIN) & align);
+            int y0 = Math.max(0, (fh / 4 - MARGIN) & align);
+            int w = (Math.min(fw, fw * 3 / 4 + MARGIN) - x0) / 2;
+            int h = (Math.min(fh, fh * 3 / 4 + MARGIN) - y0) / 2;
+            int[] px = new int[w * h];
+            for (int y = 0; y < h; y++) {
+                int r1 = frame.getRowOffset(y0 + 2 * y), r2 = frame.getRowOffset(y0 + 2 * y + 1);
+                for (int x = 0, p = x0; x < w; x++, p += 2)
+                    px[y * w + x] = (frame.getUnsigned(r1 + p) + frame.getUnsigned(r1 + p + 1)
+                            + frame.getUnsigned(r2 + p) + frame.getUnsigned(r2 + p + 1) + 2) / 4;
+            }
+            Level[] levels = new Level[LEVELS + 1];
+            levels[1] = new Level(px, fw / 2, fh / 2, x0 / 2, y0 / 2, w, h);
+            for (int l = 2; l <= LEVELS; l++)
+                levels[l] = levels[l - 1].half();
+            pyramids[i] = levels;
+        }
+        return pyramids[i];
+    }
+}
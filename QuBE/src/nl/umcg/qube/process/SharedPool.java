@@ -0,0 +1,51 @@
+/* (C) 2009 Mathijs Vogelzang/University Medical Center Groningen.
+ * For more information go to http://qube.sf.net/ 
+ * 
+ * This file is part of QuBE (Quantitative Blush Evaluator).
+ * 
+ * QuBE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * QuBE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with QuBE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.umcg.qube.process;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The ForkJoinPool that calculators share to work in parallel, so that
+ * creating a calculator does not start threads of its own. The pool has a
+ * thread per processor. Its threads are daemon threads, so it never has to be
+ * shut down.
+ * 
+ * @author mathijs
+ */
+public class SharedPool {
+    private static ForkJoinPool pool;
+
+    private SharedPool() {
+    }
+
+    /**
+     * Return the shared pool, creating it when it is first asked for.
+     * 
+     * @return The pool, or null when there is only one processor and working
+     *         in parallel would only add overhead
+     */
+    public static synchronized ForkJoinPool get() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (processors <= 1)
+            return null;
+        if (pool == null)
+            pool = new ForkJoinPool(processors);
+        return pool;
+    }
+}
@@ -24,6 +24,11 @@ import java.util.Arrays;
  * This class contains methods to calculate a trimmed mean, ie. a mean value
  * over values with some of the outliers removed.
  * 
+ * The methods do not sort the whole range of values. They only select the
+ * values that are kept with a partial quicksort, and sort just those, so that
+ * they are added up in the same order as after a full sort and give exactly
+ * the same result. The range of values is reordered. Values must not be NaN.
+ * 
  * @author mathijs
  */
 public class TrimmedMean {
@@ -42,14 +47,39 @@ public class TrimmedMean {
 
     public static double trimMean(double[] values, int begin, int size, double startFrac,
             double endFrac) {
-        Arrays.sort(values, begin, begin + size);
         int start = begin + (int) (size * startFrac);
         int end = begin + (int) (size * endFrac);
 
         if (end >= begin + size)
             end = begin + size - 1;
-        if (begin >= end)
-            begin = end;
+
+        // Move the values that would be at start..end after sorting there.
+        int last = begin + size - 1;
+        if (start <= end && end == last && (last - start + 1) * 4 <= size) {
+            // Only a few of the largest values are kept, like for the blocks of
+            // the blush calculation. Keep the largest values seen so far
+            // sorted in start..last, and insert every larger value there.
+            sort(values, start, last);
+            for (int j = begin; j < start; j++) {
+                double v = values[j];
+                if (v > values[start]) {
+                    values[j] = values[start];
+                    int i = start;
+                    while (i < last && values[i + 1] < v) {
+                        values[i] = values[i + 1];
+                        i++;
+                    }
+                    values[i] = v;
+                }
+            }
+        } else if (start <= end) {
+            if (start > begin)
+                select(values, begin, last, start);
+            if (end < last)
+                select(values, start, last, end);
+            sort(values, start, end);
+        }
+
         double sum = 0;
         for (int i = start; i <= end; i++)
             sum += values[i];
@@ -57,30 +87,99 @@ public class TrimmedMean {
     }
 
     public static double discardOutliers(double[] values, double limit) {
-        Arrays.sort(values);
-        while (true) {
+        return discardOutliers(values, 0, values.length, limit);
+    }
+
+    /**
+     * Calculate the mean of a range of values, after repeatedly discarding the
+     * values that are more than limit standard deviations from the mean. The
+     * range is sorted.
+     * 
+     * @return The mean of the values that are left, or NaN when none are left
+     */
+    public static double discardOutliers(double[] values, int begin, int size, double limit) {
+        Arrays.sort(values, begin, begin + size);
+        int lo = begin, hi = begin + size;
+        while (lo < hi) {
             double mean = 0;
-            for (double d : values) {
-                mean += d;
-            }
-            mean /= values.length;
+            for (int i = lo; i < hi; i++)
+                mean += values[i];
+            mean /= hi - lo;
             double sd = 0;
-            for (double d : values)
-                sd += (d - mean) * (d - mean);
-            sd = Math.sqrt(sd / values.length);
+            for (int i = lo; i < hi; i++)
+                sd += (values[i] - mean) * (values[i] - mean);
+            sd = Math.sqrt(sd / (hi - lo));
 
-            if (values[0] >= mean - limit * sd && values[values.length - 1] <= mean + limit * sd)
+            if (values[lo] >= mean - limit * sd && values[hi - 1] <= mean + limit * sd)
                 return mean;
 
-            int idx1 = Arrays.binarySearch(values, mean - limit * sd);
-            int idx2 = Arrays.binarySearch(values, mean + limit * sd);
+            int idx1 = Arrays.binarySearch(values, lo, hi, mean - limit * sd);
+            int idx2 = Arrays.binarySearch(values, lo, hi, mean + limit * sd);
             if (idx1 < 0)
                 idx1 = -(idx1 + 1);
             if (idx2 < 0)
                 idx2 = -(idx2 + 1);
             else
                 idx2++;
-            values = Arrays.copyOfRange(values, idx1, idx2);
+            lo = idx1;
+            hi = idx2;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Partially sort values[lo..hi] such that values[k] holds the value it
+     * would hold after sorting, with no larger values before it and no smaller
+     * values after it.
+     */
+    private static void select(double[] values, int lo, int hi, int k) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            double a = values[lo], b = values[mid], c = values[hi];
+            double pivot = a < b ? (b < c ? b : (a < c ? c : a)) : (a < c ? a : (b < c ? c : b));
+
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (values[i] < pivot)
+                    i++;
+                while (values[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    double t = values[i];
+                    values[i] = values[j];
+                    values[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            // Now values[lo..j] <= pivot, values[i..hi] >= pivot and the
+            // values in between are equal to the pivot.
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+        sort(values, lo, hi);
+    }
+
+    /**
+     * Sort values[lo..hi], with insertion sort for small ranges.
+     */
+    private static void sort(double[] values, int lo, int hi) {
+        if (hi - lo > 32) {
+            Arrays.sort(values, lo, hi + 1);
+            return;
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            double v = values[i];
+            int j = i;
+            while (j > lo && values[j - 1] > v) {
+                values[j] = values[j - 1];
+                j--;
+            }
+            values[j] = v;
         }
     }
 }
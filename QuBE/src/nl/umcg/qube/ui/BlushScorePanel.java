@@ -63,6 +63,13 @@ public class BlushScorePanel extends JPanel {
         });
     }
 
+    /**
+     * @see CAGPanel#setPreviewMoveCalculator(IMoveCalculator)
+     */
+    public void setPreviewMoveCalculator(IMoveCalculator calculator) {
+        cagPanel.setPreviewMoveCalculator(calculator);
+    }
+
     public void setSequence(CAGSequence sequence) {
         setPolygon(null);
         cagPanel.setSequence(sequence);
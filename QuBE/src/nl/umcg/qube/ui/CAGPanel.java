@@ -36,12 +36,14 @@ import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import nl.umcg.qube.model.CAGFrame;
 import nl.umcg.qube.model.CAGSequence;
+import nl.umcg.qube.model.FrameMemoryManager;
 import nl.umcg.qube.model.MoveCorrection;
 import nl.umcg.qube.model.SequenceIdentifier;
 import nl.umcg.qube.process.IMoveCalculator;
@@ -88,6 +90,14 @@ public class CAGPanel extends JPanel {
 
     protected IMoveCalculator moveCalculator;
 
+    /**
+     * A fast calculator whose result is shown until the one of moveCalculator
+     * is known, or null to always wait for moveCalculator
+     */
+    protected IMoveCalculator previewCalculator;
+    /** The result of moveCalculator for the current sequence, once known */
+    protected volatile MoveCorrection refinedCorrection;
+
     protected void fireChange() {
         for (ChangeListener cl : changeListeners)
             cl.stateChanged(new ChangeEvent(this));
@@ -179,29 +189,29 @@ public class CAGPanel extends JPanel {
 
         MoveCorrection mi = null;
         if (correctMove) {
-            mi = moveCalculator.getMoveCorrection(sequence);
+            mi = getMoveCorrection();
         }
 
         if (renderChoice.getSelectedIndex() == 0) {
-            short[][] pixelValues = frame.getValues();
-
             int width = sequence.getWidth(), height = sequence.getHeight();
 
-            for (int x = 0; x < width; x++)
-                for (int y = 0; y < height; y++) {
+            for (int y = 0; y < height; y++) {
+                int row = frame.getRowOffset(y);
+                for (int x = 0; x < width; x++) {
                     if (correctMove) {
                         int nx = x - mi.dx[currentFrame], ny = y - mi.dy[currentFrame];
                         if (nx < 0 || ny < 0 || nx >= width || ny >= height)
                             continue;
                     }
 
-                    int col = 0xFF000000 + (pixelValues[y][x] * (int) 0x010101);
+                    int col = 0xFF000000 + (frame.getUnsigned(row + x) * (int) 0x010101);
 
                     if (correctMove)
                         image.setRGB(x - mi.dx[currentFrame], y - mi.dy[currentFrame], col);
                     else
                         image.setRGB(x, y, col);
                 }
+            }
         } else {
             if (correctMove)
                 plugins.get(renderChoice.getSelectedIndex() - 1).renderFrame(sequence,
@@ -230,6 +240,56 @@ public class CAGPanel extends JPanel {
         }
     }
 
+    /**
+     * Return the move correction to show the current sequence with: the one of
+     * the preview calculator until the one of moveCalculator has been
+     * calculated in the background.
+     */
+    protected MoveCorrection getMoveCorrection() {
+        if (previewCalculator == null)
+            return moveCalculator.getMoveCorrection(sequence);
+        MoveCorrection refined = refinedCorrection;
+        return refined != null ? refined : previewCalculator.getMoveCorrection(sequence);
+    }
+
+    /**
+     * Calculate the move correction of the current sequence with moveCalculator
+     * on a background thread, and repaint when it is done.
+     */
+    protected void startRefinement() {
+        final CAGSequence seq = sequence;
+        Thread thread = new Thread("Move correction") {
+            public void run() {
+                final MoveCorrection mc = moveCalculator.getMoveCorrection(seq);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (sequence == seq) {
+                            refinedCorrection = mc;
+                            repaint();
+                        }
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Set a fast move calculator to show the sequence with while the move
+     * correction of the normal calculator is calculated in the background.
+     * 
+     * @param calculator
+     *            The fast calculator, or null to wait for the normal one
+     */
+    public void setPreviewMoveCalculator(IMoveCalculator calculator) {
+        previewCalculator = calculator;
+        refinedCorrection = null;
+        if (sequence != null && previewCalculator != null)
+            startRefinement();
+        repaint();
+    }
+
     public void startSequence() {
         sequenceTimer.start();
         playButton.setText("||");
@@ -248,7 +308,17 @@ public class CAGPanel extends JPanel {
     }
 
     public void setSequence(CAGSequence sequence) {
+        // Buffers of the shown sequence are the last to be evicted
+        FrameMemoryManager memory = FrameMemoryManager.getInstance();
+        if (this.sequence != null)
+            memory.setPriority(this.sequence.getID(), FrameMemoryManager.DEFAULT_PRIORITY);
+        if (sequence != null)
+            memory.setPriority(sequence.getID(), FrameMemoryManager.VISIBLE_PRIORITY);
+
         this.sequence = sequence;
+        refinedCorrection = null;
+        if (sequence != null && previewCalculator != null)
+            startRefinement();
         currentFrame = 0;
         scrollBar.setEnabled(sequence != null);
         scrollBar.setBlockIncrement(1);